@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Encoding shared by the BinaryLog and WorkloadCapture file formats and
+ * their readers.  Integers are unsigned LEB128 varints, signed ones
+ * zig-zag encoded first, and byte arrays are prefixed by their length.
+ * Strings are interned in a string table: a TAG_STRING record assigns an
+ * id which later records refer to, where id 0 means absent and a later
+ * record may redefine an id.
+ */
+final class BinaryFormat {
+    static final int TAG_STRING = 1;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BinaryFormat() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    static void putVarLong(final ByteBuffer buffer, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    static void writeVarLong(final DataOutput output, final long value)
+            throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            output.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        output.writeByte((int) remaining);
+    }
+
+    static long readVarLong(final DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /** Write a signed value zig-zag encoded so small magnitudes are short. */
+    static void writeSignedVarLong(final DataOutput output, final long value)
+            throws IOException {
+        writeVarLong(output, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarLong(final DataInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeBytes(final DataOutput output, final byte[] bytes)
+            throws IOException {
+        writeVarLong(output, bytes.length);
+        output.write(bytes);
+    }
+
+    static byte[] readBytes(final DataInput in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeUtf8(final DataOutput output, final String string)
+            throws IOException {
+        writeBytes(output, string.getBytes(UTF_8));
+    }
+
+    static String readUtf8(final DataInput in) throws IOException {
+        return new String(readBytes(in), UTF_8);
+    }
+
+    /** Read the body of a TAG_STRING record into strings. */
+    static void readStringRecord(final DataInput in,
+            final Map<Long, String> strings) throws IOException {
+        long id = readVarLong(in);
+        strings.put(id, readUtf8(in));
+    }
+
+    /** Return the string defined for id, or null if id is 0. */
+    static String lookup(final Map<Long, String> strings, final long id)
+            throws IOException {
+        if (id == 0) {
+            return null;
+        }
+        String string = strings.get(id);
+        if (string == null) {
+            throw new IOException("undefined string id " + id);
+        }
+        return string;
+    }
+
+    /** Read a string id and return its string, or null if absent. */
+    static String readStringId(final DataInput in,
+            final Map<Long, String> strings) throws IOException {
+        return lookup(strings, readVarLong(in));
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.maginatics.jdbclint.Configuration.Check;
+
+/**
+ * BinaryLog is an Action which appends violations, and optionally statement
+ * executions, to a compact binary log.  Call sites, checks and SQL
+ * fingerprints are interned so each record takes a few bytes; messages are
+ * not logged since they follow from the check, call site and SQL.  Records
+ * are buffered and written sequentially through a FileChannel, violations
+ * immediately and statements at least every FLUSH_INTERVAL_MILLIS.  When
+ * the file exceeds the rotation size it is renamed to FILE.1, shifting older
+ * files, and a new file is started.  BinaryLogAnalyzer reads these logs.
+ *
+ * File format, encoded as described in BinaryFormat:
+ *
+ *     header:    int magic, byte version
+ *     string:    TAG_STRING id length utf8-bytes
+ *     violation: TAG_VIOLATION time-delta check-id call-site-id sql-id
+ *     statement: TAG_STATEMENT time-delta call-site-id sql-id elapsed-nanos
+ *
+ * String id 0 means absent and each file has its own string table.
+ */
+public final class BinaryLog implements Configuration.CheckAction,
+        Configuration.Listener, Closeable {
+    static final int MAGIC = 0x4A444C47;  // "JDLG"
+    static final int VERSION = 2;
+    static final int TAG_STRING = BinaryFormat.TAG_STRING;
+    static final int TAG_VIOLATION = 2;
+    static final int TAG_STATEMENT = 3;
+    private static final int MAX_STRING_LENGTH = 4096;
+    private static final int MAX_INTERNED_STRINGS = 1 << 16;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final File file;
+    private final long rotateBytes;
+    private final int maxFiles;
+    private final boolean logStatements;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final Map<String, Integer> strings =
+            new HashMap<String, Integer>();
+    // Throwable uses identity equality so this caches call sites per proxy.
+    private final Map<Throwable, String> callSites =
+            new WeakHashMap<Throwable, String>();
+    private final Thread shutdownHook = new Thread() {
+        @Override
+        public void run() {
+            try {
+                closeChannel();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    };
+    private FileChannel channel;
+    private long fileBytes;
+    private long lastMillis;
+    private long flushedMillis;
+
+    /**
+     * Create a BinaryLog.
+     *
+     * @param file log file, appended to if it exists
+     * @param rotateBytes rotate after the file exceeds this size
+     * @param maxFiles number of rotated files to keep
+     * @param logStatements whether to also log statement executions
+     */
+    public BinaryLog(final File file, final long rotateBytes,
+            final int maxFiles, final boolean logStatements)
+            throws IOException {
+        this.file = Utils.checkNotNull(file);
+        if (rotateBytes <= 0 || maxFiles < 0) {
+            throw new IllegalArgumentException(
+                    "invalid rotation: " + rotateBytes + " " + maxFiles);
+        }
+        this.rotateBytes = rotateBytes;
+        this.maxFiles = maxFiles;
+        this.logStatements = logStatements;
+        open();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    public void apply(final String message, final Exception exception) {
+        apply(null, null, message, exception);
+    }
+
+    @Override
+    public synchronized void apply(final Check check, final String sql,
+            final String message, final Exception exception) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            String checkName = null;
+            if (check != null) {
+                checkName = check.name();
+            }
+            int checkId = intern(checkName);
+            int callSiteId = intern(callSite(exception));
+            int sqlId = intern(Utils.fingerprint(sql));
+            ensure(1 + 10 + 3 * 5);
+            buffer.put((byte) TAG_VIOLATION);
+            putTime();
+            BinaryFormat.putVarLong(buffer, checkId);
+            BinaryFormat.putVarLong(buffer, callSiteId);
+            BinaryFormat.putVarLong(buffer, sqlId);
+            // Violations are rare and wanted even if the JVM dies.
+            flush();
+            maybeRotate();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void statementExecuted(final Configuration config,
+            final String sql, final long elapsedNanos,
+            final Exception creationSite) {
+        // Check before locking since most logs record only violations.
+        if (logStatements) {
+            writeStatement(sql, elapsedNanos, creationSite);
+        }
+    }
+
+    private synchronized void writeStatement(final String sql,
+            final long elapsedNanos, final Exception creationSite) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            int callSiteId = intern(callSite(creationSite));
+            int sqlId = intern(Utils.fingerprint(sql));
+            ensure(1 + 10 + 2 * 5 + 10);
+            buffer.put((byte) TAG_STATEMENT);
+            putTime();
+            BinaryFormat.putVarLong(buffer, callSiteId);
+            BinaryFormat.putVarLong(buffer, sqlId);
+            BinaryFormat.putVarLong(buffer, Math.max(0, elapsedNanos));
+            if (lastMillis - flushedMillis >= FLUSH_INTERVAL_MILLIS) {
+                flush();
+            }
+            maybeRotate();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /** Return whether this logs statement executions. */
+    boolean logsStatements() {
+        return logStatements;
+    }
+
+    /** Write buffered records to the file. */
+    public synchronized void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileBytes += channel.write(buffer);
+        }
+        buffer.clear();
+        flushedMillis = lastMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ise) {
+            // already shutting down; the hook closes the channel
+        }
+        closeChannel();
+    }
+
+    private synchronized void closeChannel() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = new FileOutputStream(file, /*append=*/ true).getChannel();
+        fileBytes = channel.size();
+        strings.clear();
+        lastMillis = 0;
+        if (fileBytes == 0) {
+            buffer.putInt(MAGIC);
+            buffer.put((byte) VERSION);
+        } else {
+            // Appending to an existing file whose string table is unknown;
+            // start a new file so every file is self-contained.
+            channel.close();
+            rotateFiles();
+            channel = new FileOutputStream(file).getChannel();
+            fileBytes = 0;
+            buffer.putInt(MAGIC);
+            buffer.put((byte) VERSION);
+        }
+    }
+
+    private void maybeRotate() throws IOException {
+        if (fileBytes + buffer.position() < rotateBytes &&
+                strings.size() < MAX_INTERNED_STRINGS) {
+            return;
+        }
+        closeChannel();
+        rotateFiles();
+        open();
+    }
+
+    private void rotateFiles() throws IOException {
+        if (maxFiles == 0) {
+            if (!file.delete()) {
+                throw new IOException("could not delete " + file);
+            }
+            return;
+        }
+        File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("could not delete " + oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; --i) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists() && !from.renameTo(
+                    new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("could not rename " + from);
+            }
+        }
+        if (!file.renameTo(new File(file.getPath() + ".1"))) {
+            throw new IOException("could not rename " + file);
+        }
+    }
+
+    private String callSite(final Throwable throwable) {
+        if (throwable == null) {
+            return null;
+        }
+        String callSite = callSites.get(throwable);
+        if (callSite == null) {
+            callSite = Utils.callSite(throwable);
+            callSites.put(throwable, callSite);
+        }
+        return callSite;
+    }
+
+    private int intern(final String string) throws IOException {
+        if (string == null) {
+            return 0;
+        }
+        Integer id = strings.get(string);
+        if (id != null) {
+            return id;
+        }
+        id = strings.size() + 1;
+        strings.put(string, id);
+        String truncated = string;
+        if (truncated.length() > MAX_STRING_LENGTH) {
+            truncated = truncated.substring(0, MAX_STRING_LENGTH);
+        }
+        byte[] bytes = truncated.getBytes(BinaryFormat.UTF_8);
+        ensure(1 + 3 * 5 + bytes.length);
+        buffer.put((byte) TAG_STRING);
+        BinaryFormat.putVarLong(buffer, id);
+        BinaryFormat.putVarLong(buffer, bytes.length);
+        buffer.put(bytes);
+        return id;
+    }
+
+    private void putTime() {
+        long now = System.currentTimeMillis();
+        BinaryFormat.putVarLong(buffer, Math.max(0, now - lastMillis));
+        lastMillis = Math.max(lastMillis, now);
+    }
+
+    private void ensure(final int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BinaryLogAnalyzer streams logs written by BinaryLog and prints the top
+ * checks, call sites and SQL fingerprints.  Usage:
+ *
+ *     java -cp jdbclint.jar com.maginatics.jdbclint.BinaryLogAnalyzer \
+ *             [-n TOP] FILE...
+ */
+public final class BinaryLogAnalyzer {
+    private final Map<String, Counter> checks = new HashMap<String, Counter>();
+    private final Map<String, Counter> violationCallSites =
+            new HashMap<String, Counter>();
+    private final Map<String, Counter> violationSql =
+            new HashMap<String, Counter>();
+    private final Map<String, Counter> statementCallSites =
+            new HashMap<String, Counter>();
+    private final Map<String, Counter> statementSql =
+            new HashMap<String, Counter>();
+
+    /** Occurrence count and total elapsed time for one key. */
+    private static final class Counter {
+        private final String key;
+        private long count;
+        private long nanos;
+
+        Counter(final String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Counter> BY_COUNT =
+            new Comparator<Counter>() {
+                @Override
+                public int compare(final Counter a, final Counter b) {
+                    if (a.count < b.count) {
+                        return 1;
+                    } else if (a.count > b.count) {
+                        return -1;
+                    }
+                    return a.key.compareTo(b.key);
+                }
+            };
+
+    public static void main(final String[] args) throws IOException {
+        int top = 10;
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: BinaryLogAnalyzer [-n TOP] FILE...");
+            System.exit(1);
+        }
+        BinaryLogAnalyzer analyzer = new BinaryLogAnalyzer();
+        for (File file : files) {
+            analyzer.read(file);
+        }
+        analyzer.print(System.out, top);
+    }
+
+    /** Read all records from file, stopping at a truncated record. */
+    void read(final File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != BinaryLog.MAGIC) {
+                throw new IOException("not a JDBC lint log: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != BinaryLog.VERSION) {
+                throw new IOException("unsupported version " + version +
+                        ": " + file);
+            }
+            Map<Long, String> strings = new HashMap<Long, String>();
+            while (true) {
+                int tag = in.read();
+                if (tag == -1) {
+                    break;
+                } else if (tag == BinaryLog.TAG_STRING) {
+                    BinaryFormat.readStringRecord(in, strings);
+                } else if (tag == BinaryLog.TAG_VIOLATION) {
+                    BinaryFormat.readVarLong(in);  // time delta
+                    String check = BinaryFormat.readStringId(in, strings);
+                    String callSite = BinaryFormat.readStringId(in, strings);
+                    String sql = BinaryFormat.readStringId(in, strings);
+                    increment(checks, check, 0);
+                    increment(violationCallSites, callSite, 0);
+                    increment(violationSql, sql, 0);
+                } else if (tag == BinaryLog.TAG_STATEMENT) {
+                    BinaryFormat.readVarLong(in);  // time delta
+                    String callSite = BinaryFormat.readStringId(in, strings);
+                    String sql = BinaryFormat.readStringId(in, strings);
+                    long nanos = BinaryFormat.readVarLong(in);
+                    increment(statementCallSites, callSite, nanos);
+                    increment(statementSql, sql, nanos);
+                } else {
+                    throw new IOException("unknown tag " + tag + ": " + file);
+                }
+            }
+        } catch (EOFException eofe) {
+            // log was truncated while writing, use what we have
+        } finally {
+            in.close();
+        }
+    }
+
+    void print(final PrintStream out, final int top) {
+        printTop(out, "Checks", checks, top, false);
+        printTop(out, "Violation call sites", violationCallSites, top, false);
+        printTop(out, "Violation SQL", violationSql, top, false);
+        printTop(out, "Statement call sites", statementCallSites, top, true);
+        printTop(out, "Statement SQL", statementSql, top, true);
+    }
+
+    private static void printTop(final PrintStream out, final String title,
+            final Map<String, Counter> counters, final int top,
+            final boolean timed) {
+        if (counters.isEmpty()) {
+            return;
+        }
+        List<Counter> sorted = new ArrayList<Counter>(counters.values());
+        Collections.sort(sorted, BY_COUNT);
+        out.println(title + ":");
+        for (Counter counter : sorted.subList(0,
+                Math.min(top, sorted.size()))) {
+            if (timed) {
+                out.printf("%10d %12.3f ms  %s%n", counter.count,
+                        counter.nanos / 1e6, counter.key);
+            } else {
+                out.printf("%10d  %s%n", counter.count, counter.key);
+            }
+        }
+        out.println();
+    }
+
+    private static void increment(final Map<String, Counter> counters,
+            final String key, final long nanos) {
+        if (key == null) {
+            return;
+        }
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = new Counter(key);
+            counters.put(key, counter);
+        }
+        ++counter.count;
+        counter.nanos += nanos;
+    }
+}
@@ -16,13 +16,16 @@
 
 package com.maginatics.jdbclint;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Blob;
 import java.sql.SQLException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import com.maginatics.jdbclint.Configuration.Check;
 
@@ -35,11 +38,21 @@ import com.maginatics.jdbclint.Configuration.Check;
 final class BlobProxy implements InvocationHandler {
     private final Blob blob;
     private final Configuration config;
-    private final Exception exception = new SQLException();
+    /** Creation site, or null if no BLOB_ check is enabled. */
+    private final Exception exception;
 
-    private final AtomicBoolean freed = new AtomicBoolean();
+    private static final AtomicIntegerFieldUpdater<BlobProxy> FREED =
+            AtomicIntegerFieldUpdater.newUpdater(BlobProxy.class, "freed");
+    private volatile int freed;
 
+    /**
+     * Return a proxied Blob, or blob itself if nothing would observe it.
+     */
     static Blob newInstance(final Blob blob, final Configuration config) {
+        if (blob == null ||
+                (!config.wrapsBlobs() && WorkUnit.current() == null)) {
+            return blob;
+        }
         return (Blob) Proxy.newProxyInstance(
                 blob.getClass().getClassLoader(),
                 new Class<?>[] {Blob.class},
@@ -49,6 +62,12 @@ final class BlobProxy implements InvocationHandler {
     BlobProxy(final Blob blob, final Configuration config) {
         this.blob = Utils.checkNotNull(blob);
         this.config = Utils.checkNotNull(config);
+        // Proxies made only for WorkUnit accounting report nothing.
+        if (config.wrapsBlobs()) {
+            this.exception = new SQLException();
+        } else {
+            this.exception = null;
+        }
     }
 
     @Override
@@ -56,9 +75,10 @@ final class BlobProxy implements InvocationHandler {
             final Object[] args) throws Throwable {
         String name = method.getName();
         if (name.equals("free")) {
-            boolean previouslyFreed = freed.getAndSet(true);
+            boolean previouslyFreed = FREED.getAndSet(this, 1) != 0;
             if (config.isEnabled(Check.BLOB_DOUBLE_FREE) && previouslyFreed) {
-                Utils.fail(config, exception, "Blob already freed");
+                Utils.fail(config, Check.BLOB_DOUBLE_FREE, exception,
+                        "Blob already freed");
             }
         }
 
@@ -68,13 +88,55 @@ final class BlobProxy implements InvocationHandler {
         } catch (InvocationTargetException ite) {
             throw ite.getTargetException();
         }
+        if (name.equals("getBytes")) {
+            WorkUnit unit = WorkUnit.current();
+            if (unit != null) {
+                unit.blobRead(((byte[]) returnVal).length);
+            }
+        } else if (name.equals("getBinaryStream") && returnVal != null) {
+            WorkUnit unit = WorkUnit.current();
+            if (unit != null) {
+                returnVal = new CountingInputStream((InputStream) returnVal,
+                        unit);
+            }
+        }
         return returnVal;
     }
 
+    /** Count bytes read from a Blob stream towards a WorkUnit. */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final WorkUnit unit;
+
+        CountingInputStream(final InputStream in, final WorkUnit unit) {
+            super(in);
+            this.unit = unit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                unit.blobRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                unit.blobRead(n);
+            }
+            return n;
+        }
+    }
+
     @Override
     protected void finalize() throws SQLException {
-        if (config.isEnabled(Check.BLOB_MISSING_FREE) && !freed.get()) {
-            Utils.fail(config, exception, "Blob not freed");
+        if (config.isEnabled(Check.BLOB_MISSING_FREE) && freed == 0) {
+            Utils.fail(config, Check.BLOB_MISSING_FREE, exception,
+                    "Blob not freed");
         }
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.maginatics.jdbclint.Configuration.Check;
+
+/**
+ * ConcurrentUseDetector detects overlapping calls to a JDBC object from
+ * different threads.  Each call marks the object in flight with a single
+ * compareAndSet; a call which finds another thread's mark reports both call
+ * sites, taking the other thread's from its current stack.  Most drivers
+ * serialize calls on a Connection so this sharing only adds contention.
+ * Methods which JDBC intends to be called from another thread, such as
+ * Statement.cancel from a watchdog or Connection.abort from a pool reaper,
+ * neither mark the object nor report.
+ */
+final class ConcurrentUseDetector {
+    private static final Set<String> CROSS_THREAD_METHODS =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                    "abort", "cancel", "close", "isClosed")));
+
+    private final Configuration config;
+    private final Check check;
+    private final String className;
+    private final AtomicReference<Thread> inFlight =
+            new AtomicReference<Thread>();
+    private volatile Thread owner;
+
+    ConcurrentUseDetector(final Configuration config, final Check check,
+            final String className) {
+        this.config = Utils.checkNotNull(config);
+        this.check = Utils.checkNotNull(check);
+        this.className = Utils.checkNotNull(className);
+    }
+
+    /**
+     * Return a detector if check is enabled or null otherwise, so that
+     * proxies pay only a null check when it is disabled.
+     */
+    static ConcurrentUseDetector newInstance(final Configuration config,
+            final Check check, final String className) {
+        if (!config.isEnabled(check)) {
+            return null;
+        }
+        return new ConcurrentUseDetector(config, check, className);
+    }
+
+    /**
+     * Mark the object in flight for a call to methodName.
+     *
+     * @return true if the caller must call exit after its call
+     */
+    boolean enter(final String methodName) throws SQLException {
+        if (CROSS_THREAD_METHODS.contains(methodName)) {
+            return false;
+        }
+        Thread current = Thread.currentThread();
+        if (owner == null) {
+            owner = current;
+        }
+        if (inFlight.compareAndSet(null, current)) {
+            return true;
+        }
+        Thread holder = inFlight.get();
+        if (holder != null && holder != current) {
+            report(current, holder);
+        }
+        return false;
+    }
+
+    void exit() {
+        inFlight.set(null);
+    }
+
+    private void report(final Thread current, final Thread holder)
+            throws SQLException {
+        SQLException other = new SQLException(
+                "call in flight on thread " + holder.getName());
+        other.setStackTrace(holder.getStackTrace());
+        SQLException exception = new SQLException(
+                "call on thread " + current.getName(), other);
+        Utils.fail(config, check, exception, className +
+                " used concurrently by threads " + current.getName() +
+                " at " + Utils.callSite(exception) + " and " +
+                holder.getName() + " at " + Utils.callSite(other) +
+                ", first used by " + owner.getName());
+    }
+}
@@ -24,8 +24,15 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Configuration for JDBC lint.  Most users should use
@@ -36,28 +43,187 @@ public final class Configuration {
     public enum Check {
         BLOB_DOUBLE_FREE,
         BLOB_MISSING_FREE,
+        /**
+         * Not a check: memoize immutable DatabaseMetaData answers per
+         * connection URL.  Configuration.clearMetaDataCache discards them.
+         */
+        CACHE_DATABASE_METADATA,
+        CONNECTION_AUTO_COMMIT_UPDATES,
+        CONNECTION_COMMIT_PER_UPDATE,
+        CONNECTION_CONCURRENT_USE,
         CONNECTION_DOUBLE_CLOSE,
+        CONNECTION_INSERT_THEN_SELECT,
         CONNECTION_MISSING_CLOSE,
         CONNECTION_MISSING_COMMIT_OR_ROLLBACK,
         CONNECTION_MISSING_PREPARE_STATEMENT,
         CONNECTION_MISSING_READ_ONLY,
+        CONNECTION_REPEATED_METADATA,
+        DATA_SOURCE_SLOW_GET_CONNECTION,
+        PREPARED_STATEMENT_BAD_BATCH_SIZE,
+        PREPARED_STATEMENT_CONCURRENT_USE,
         PREPARED_STATEMENT_DOUBLE_CLOSE,
+        PREPARED_STATEMENT_IDLE_OPEN,
         PREPARED_STATEMENT_MISSING_CLOSE,
         PREPARED_STATEMENT_MISSING_EXECUTE,
         PREPARED_STATEMENT_MISSING_EXECUTE_BATCH,
+        PREPARED_STATEMENT_MISSING_QUERY_TIMEOUT,
+        QUERY_FULL_SCAN,
+        RESULT_SET_CONCURRENT_USE,
         RESULT_SET_DOUBLE_CLOSE,
+        RESULT_SET_IDLE_OPEN,
+        RESULT_SET_LABEL_GETTERS,
         RESULT_SET_MISSING_CLOSE,
+        RESULT_SET_REPEATED_METADATA,
         RESULT_SET_UNREAD_COLUMN,
+        RESULT_SET_UNUSED_SCROLL_OR_UPDATE,
+        STATEMENT_BAD_BATCH_SIZE,
+        STATEMENT_CONCURRENT_USE,
         STATEMENT_DOUBLE_CLOSE,
+        STATEMENT_IDLE_OPEN,
         STATEMENT_MISSING_CLOSE,
         STATEMENT_MISSING_EXECUTE,
-        STATEMENT_MISSING_EXECUTE_BATCH;
+        STATEMENT_MISSING_EXECUTE_BATCH,
+        STATEMENT_MISSING_QUERY_TIMEOUT,
+        VIRTUAL_THREAD_BLOCKING,
+        WORK_UNIT_OVER_BUDGET;
     }
     private final Set<Check> checks;
+    private final boolean wrapsResultSets;
+    private final boolean wrapsBlobs;
 
     public static final Set<Check> DEFAULT_CHECKS =
             Collections.unmodifiableSet(EnumSet.complementOf(EnumSet.of(
-                    Check.CONNECTION_MISSING_READ_ONLY)));
+                    Check.CACHE_DATABASE_METADATA,
+                    Check.CONNECTION_AUTO_COMMIT_UPDATES,
+                    Check.CONNECTION_COMMIT_PER_UPDATE,
+                    Check.CONNECTION_CONCURRENT_USE,
+                    Check.CONNECTION_INSERT_THEN_SELECT,
+                    Check.CONNECTION_MISSING_READ_ONLY,
+                    Check.CONNECTION_REPEATED_METADATA,
+                    Check.DATA_SOURCE_SLOW_GET_CONNECTION,
+                    Check.PREPARED_STATEMENT_BAD_BATCH_SIZE,
+                    Check.PREPARED_STATEMENT_CONCURRENT_USE,
+                    Check.PREPARED_STATEMENT_IDLE_OPEN,
+                    Check.PREPARED_STATEMENT_MISSING_QUERY_TIMEOUT,
+                    Check.QUERY_FULL_SCAN,
+                    Check.RESULT_SET_CONCURRENT_USE,
+                    Check.RESULT_SET_IDLE_OPEN,
+                    Check.RESULT_SET_LABEL_GETTERS,
+                    Check.RESULT_SET_REPEATED_METADATA,
+                    Check.RESULT_SET_UNUSED_SCROLL_OR_UPDATE,
+                    Check.STATEMENT_BAD_BATCH_SIZE,
+                    Check.STATEMENT_CONCURRENT_USE,
+                    Check.STATEMENT_IDLE_OPEN,
+                    Check.STATEMENT_MISSING_QUERY_TIMEOUT,
+                    Check.VIRTUAL_THREAD_BLOCKING,
+                    Check.WORK_UNIT_OVER_BUDGET)));
+
+    /** Tunable limits used by performance checks. */
+    public enum Threshold {
+        /**
+         * Consecutive updates executed in auto-commit mode before
+         * CONNECTION_AUTO_COMMIT_UPDATES fires.
+         */
+        AUTO_COMMIT_UPDATES(100),
+        /**
+         * Commits each containing a single update before
+         * CONNECTION_COMMIT_PER_UPDATE fires.
+         */
+        COMMIT_PER_UPDATE_COMMITS(10),
+        /**
+         * Milliseconds DataSource.getConnection may take before
+         * DATA_SOURCE_SLOW_GET_CONNECTION fires.
+         */
+        GET_CONNECTION_MILLIS(500),
+        /**
+         * Milliseconds a virtual thread may block in a JDBC call before
+         * VIRTUAL_THREAD_BLOCKING fires.
+         */
+        VIRTUAL_THREAD_BLOCKING_MILLIS(50),
+        /**
+         * Calls from a call site which block virtual threads longer than
+         * VIRTUAL_THREAD_BLOCKING_MILLIS before VIRTUAL_THREAD_BLOCKING
+         * fires.
+         */
+        VIRTUAL_THREAD_BLOCKING_COUNT(10),
+        /** Milliseconds after which ExplainSampler explains a query. */
+        EXPLAIN_SLOW_QUERY_MILLIS(100),
+        /** Executions after which ExplainSampler explains a query. */
+        EXPLAIN_FREQUENT_QUERY_COUNT(1000),
+        /** Minimum milliseconds between ExplainSampler queries. */
+        EXPLAIN_INTERVAL_MILLIS(1000),
+        /**
+         * Seconds after which JDBC lint cancels executions of statements
+         * without their own query timeout.  Zero disables enforcement.
+         */
+        QUERY_TIMEOUT_SECONDS(0),
+        /**
+         * Mean batch size below which STATEMENT_BAD_BATCH_SIZE reports a
+         * SQL, since tiny batches save few round trips.
+         */
+        BATCH_SIZE_MIN(2),
+        /**
+         * Batch size above which STATEMENT_BAD_BATCH_SIZE reports a batch,
+         * since huge batches can exhaust driver memory or packet limits.
+         */
+        BATCH_SIZE_MAX(10000),
+        /** Batches of a SQL executed before judging their mean size. */
+        BATCH_SIZE_MIN_BATCHES(10),
+        /** Connections a WorkUnit may acquire. */
+        WORK_UNIT_MAX_CONNECTIONS(5),
+        /** Statements a WorkUnit may execute. */
+        WORK_UNIT_MAX_STATEMENTS(100),
+        /** Rows a WorkUnit may read. */
+        WORK_UNIT_MAX_ROWS(10000),
+        /** Blob bytes a WorkUnit may read via getBytes. */
+        WORK_UNIT_MAX_BLOB_BYTES(16 * 1024 * 1024),
+        /** Milliseconds a WorkUnit may spend in the driver. */
+        WORK_UNIT_MAX_DRIVER_MILLIS(1000),
+        /**
+         * Calls to getMetaData on one Connection or ResultSet before
+         * CONNECTION_REPEATED_METADATA or RESULT_SET_REPEATED_METADATA
+         * fires.
+         */
+        METADATA_CALLS(10),
+        /**
+         * Rows a ResultSet may read using only column labels before
+         * RESULT_SET_LABEL_GETTERS fires.
+         */
+        LABEL_GETTER_ROWS(1000),
+        /**
+         * Milliseconds a Statement or ResultSet may stay open without calls
+         * before STATEMENT_IDLE_OPEN or RESULT_SET_IDLE_OPEN fires.  Idle
+         * cursors are found once per second.
+         */
+        IDLE_OPEN_MILLIS(5000),
+        /**
+         * Non-zero to call setReadOnly(true) on new Connections from call
+         * sites whose last closed Connections, at least this many, never
+         * executed an update.
+         */
+        READ_ONLY_ROUTING_CONNECTIONS(0),
+        /**
+         * SELECTs from a call site reading back a row just inserted into
+         * the same table by a key = ? predicate before
+         * CONNECTION_INSERT_THEN_SELECT fires.
+         */
+        INSERT_THEN_SELECT_COUNT(10);
+
+        private final long defaultValue;
+
+        Threshold(final long defaultValue) {
+            this.defaultValue = defaultValue;
+        }
+
+        public long getDefault() {
+            return defaultValue;
+        }
+    }
+    private final Map<Threshold, Long> thresholds;
+    private final Statistics statistics = new Statistics();
+    private final ConcurrentMap<String, ConcurrentMap<String, Object>>
+            metaDataAnswers =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Object>>();
 
     /** Action to take after failing a check. */
     public interface Action {
@@ -65,6 +231,91 @@ public final class Configuration {
     }
     private final Collection<Action> actions;
 
+    /**
+     * Action which also receives the failed Check and the SQL of the
+     * statement involved, if any.  Utils calls this variant instead of the
+     * two-argument apply.
+     */
+    public interface CheckAction extends Action {
+        void apply(Check check, String sql, String message,
+                Exception exception) throws SQLException;
+    }
+
+    /**
+     * Listener for statement executions.  Listeners, and Actions which also
+     * implement Listener, are notified after every execute call.  BinaryLogs
+     * which do not log statements are not registered as listeners, so that
+     * statements are not timed for them.
+     */
+    public interface Listener {
+        /**
+         * Called after a statement execute call returns.
+         *
+         * @param config configuration of the statement
+         * @param sql statement SQL, or null if unknown
+         * @param elapsedNanos time spent in the driver
+         * @param creationSite exception created with the statement
+         */
+        void statementExecuted(Configuration config, String sql,
+                long elapsedNanos, Exception creationSite);
+    }
+    private final List<Listener> listeners;
+
+    /**
+     * Listener which also receives connection boundaries and the bound
+     * parameters of each execution, for example to capture a workload.
+     * Proxies call this variant instead of the four-argument
+     * statementExecuted.
+     */
+    public interface ExecutionListener extends Listener {
+        /**
+         * Called after a connection is opened.
+         *
+         * @param config configuration of the connection
+         * @param connectionId identifier unique within this JVM
+         */
+        void connectionOpened(Configuration config, long connectionId);
+
+        /**
+         * Called before a connection is closed.
+         *
+         * @param config configuration of the connection
+         * @param connectionId identifier passed to connectionOpened
+         */
+        void connectionClosed(Configuration config, long connectionId);
+
+        /**
+         * Called after a statement execute call returns.
+         *
+         * @param config configuration of the statement
+         * @param connectionId identifier passed to connectionOpened
+         * @param method execute method, for example executeBatch
+         * @param sql SQL of each executed entry, one unless batched
+         * @param parameters bound parameters of each entry; setNull is
+         *        passed as a NullParameter and values other than null,
+         *        Boolean, Number, String, byte[] and Date as null
+         * @param elapsedNanos time spent in the driver
+         * @param creationSite exception created with the statement
+         */
+        void statementExecuted(Configuration config, long connectionId,
+                String method, List<String> sql,
+                List<List<Object>> parameters, long elapsedNanos,
+                Exception creationSite);
+
+        /**
+         * Called after commit, rollback or setAutoCommit returns.  Rolling
+         * back to a savepoint is not reported.
+         *
+         * @param config configuration of the connection
+         * @param connectionId identifier passed to connectionOpened
+         * @param method commit, rollback or setAutoCommit
+         * @param autoCommit auto-commit mode after the call
+         */
+        void transactionChanged(Configuration config, long connectionId,
+                String method, boolean autoCommit);
+    }
+    private final boolean hasExecutionListeners;
+
     public static final Action PRINT_STACK_TRACE_ACTION = new Action() {
         @Override
         public void apply(final String message, final Exception exception) {
@@ -118,16 +369,178 @@ public final class Configuration {
 
     public Configuration(final Set<Check> checks,
             final Collection<Action> actions) {
+        this(checks, actions, Collections.<Threshold, Long>emptyMap());
+    }
+
+    /**
+     * Create a Configuration overriding some threshold defaults.
+     *
+     * @param checks enabled checks
+     * @param actions actions to take after failing a check
+     * @param thresholds overridden thresholds, others keep their defaults
+     */
+    public Configuration(final Set<Check> checks,
+            final Collection<Action> actions,
+            final Map<Threshold, Long> thresholds) {
+        this(checks, actions, thresholds, Collections.<Listener>emptyList());
+    }
+
+    /**
+     * Create a Configuration with statement listeners.
+     *
+     * @param checks enabled checks
+     * @param actions actions to take after failing a check
+     * @param thresholds overridden thresholds, others keep their defaults
+     * @param listeners listeners notified of statement executions
+     */
+    public Configuration(final Set<Check> checks,
+            final Collection<Action> actions,
+            final Map<Threshold, Long> thresholds,
+            final Collection<Listener> listeners) {
         this.checks = Collections.unmodifiableSet(EnumSet.copyOf(
                 Utils.checkNotNull(checks)));
         this.actions = Collections.unmodifiableCollection(
                 new ArrayList<Action>(Utils.checkNotNull(actions)));
+        List<Listener> list = new ArrayList<Listener>(
+                Utils.checkNotNull(listeners));
+        for (Action action : this.actions) {
+            // Statements are timed only when some listener records them.
+            if (action instanceof BinaryLog &&
+                    !((BinaryLog) action).logsStatements()) {
+                continue;
+            } else if (action instanceof Listener) {
+                list.add((Listener) action);
+            }
+        }
+        this.listeners = Collections.unmodifiableList(list);
+        boolean executionListeners = false;
+        for (Listener listener : list) {
+            if (listener instanceof ExecutionListener) {
+                executionListeners = true;
+            }
+        }
+        this.hasExecutionListeners = executionListeners;
+        Map<Threshold, Long> map = new EnumMap<Threshold, Long>(
+                Threshold.class);
+        for (Threshold threshold : Threshold.values()) {
+            map.put(threshold, threshold.getDefault());
+        }
+        map.putAll(Utils.checkNotNull(thresholds));
+        this.thresholds = Collections.unmodifiableMap(map);
+        this.wrapsBlobs = anyEnabled("BLOB_");
+        // Statements are not idle while their ResultSets are in use.
+        this.wrapsResultSets = wrapsBlobs || anyEnabled("RESULT_SET_") ||
+                isEnabled(Check.VIRTUAL_THREAD_BLOCKING) ||
+                isEnabled(Check.STATEMENT_IDLE_OPEN) ||
+                isEnabled(Check.PREPARED_STATEMENT_IDLE_OPEN);
+    }
+
+    private boolean anyEnabled(final String prefix) {
+        for (Check check : checks) {
+            if (check.name().startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create a Configuration from properties, for use when JDBC lint cannot
+     * be configured in code.  Recognized keys:
+     *
+     *     * checks: comma-separated Check names, "all" or "default"
+     *     * actions: comma-separated names from PRINT_STACK_TRACE,
+     *       SYSTEM_EXIT, THROW_RUNTIME_EXCEPTION and THROW_SQL_EXCEPTION
+     *     * file: path to print stack traces to
+     *     * any Threshold name, for example AUTO_COMMIT_UPDATES
+     *
+     * Missing checks default to DEFAULT_CHECKS and missing actions default
+     * to PRINT_STACK_TRACE, or nothing when file is set.
+     *
+     * @param properties properties to parse
+     * @return parsed configuration
+     * @throws IllegalArgumentException for unknown checks or actions
+     */
+    public static Configuration fromProperties(final Properties properties) {
+        Utils.checkNotNull(properties);
+        Set<Check> parsedChecks = EnumSet.noneOf(Check.class);
+        String value = properties.getProperty("checks", "default").trim();
+        if (value.equalsIgnoreCase("all")) {
+            parsedChecks.addAll(EnumSet.allOf(Check.class));
+        } else if (value.equalsIgnoreCase("default")) {
+            parsedChecks.addAll(DEFAULT_CHECKS);
+        } else {
+            for (String name : splitList(value)) {
+                parsedChecks.add(Check.valueOf(name.toUpperCase(
+                        Locale.ENGLISH)));
+            }
+        }
+
+        List<Action> parsedActions = new ArrayList<Action>();
+        String file = properties.getProperty("file");
+        if (file != null) {
+            parsedActions.add(printStackTraceToFile(new File(file.trim())));
+        }
+        value = properties.getProperty("actions");
+        if (value == null && file == null) {
+            value = "PRINT_STACK_TRACE";
+        }
+        if (value != null) {
+            for (String name : splitList(value)) {
+                parsedActions.add(actionByName(name));
+            }
+        }
+
+        Map<Threshold, Long> parsedThresholds = new EnumMap<Threshold, Long>(
+                Threshold.class);
+        for (Threshold threshold : Threshold.values()) {
+            value = properties.getProperty(threshold.name());
+            if (value != null) {
+                parsedThresholds.put(threshold, Long.parseLong(value.trim()));
+            }
+        }
+        return new Configuration(parsedChecks, parsedActions,
+                parsedThresholds);
+    }
+
+    private static List<String> splitList(final String value) {
+        List<String> list = new ArrayList<String>();
+        for (String name : value.split(",")) {
+            if (!name.trim().isEmpty()) {
+                list.add(name.trim());
+            }
+        }
+        return list;
+    }
+
+    private static Action actionByName(final String name) {
+        String upper = name.toUpperCase(Locale.ENGLISH);
+        if (upper.equals("PRINT_STACK_TRACE")) {
+            return PRINT_STACK_TRACE_ACTION;
+        } else if (upper.equals("SYSTEM_EXIT")) {
+            return SYSTEM_EXIT_ACTION;
+        } else if (upper.equals("THROW_RUNTIME_EXCEPTION")) {
+            return THROW_RUNTIME_EXCEPTION_ACTION;
+        } else if (upper.equals("THROW_SQL_EXCEPTION")) {
+            return THROW_SQL_EXCEPTION_ACTION;
+        }
+        throw new IllegalArgumentException("unknown action: " + name);
     }
 
     public boolean isEnabled(final Check check) {
         return checks.contains(Utils.checkNotNull(check));
     }
 
+    /** Return whether any enabled check needs ResultSets proxied. */
+    boolean wrapsResultSets() {
+        return wrapsResultSets;
+    }
+
+    /** Return whether any enabled check needs Blobs proxied. */
+    boolean wrapsBlobs() {
+        return wrapsBlobs;
+    }
+
     public Set<Check> getChecks() {
         return checks;
     }
@@ -135,4 +548,51 @@ public final class Configuration {
     public Collection<Action> getActions() {
         return actions;
     }
+
+    public List<Listener> getListeners() {
+        return listeners;
+    }
+
+    /** Return whether any listener is an ExecutionListener. */
+    boolean hasExecutionListeners() {
+        return hasExecutionListeners;
+    }
+
+    /** Return statistics aggregated across proxies using this. */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Return the memoized DatabaseMetaData answers for a connection URL,
+     * creating them if needed.
+     */
+    ConcurrentMap<String, Object> getMetaDataAnswers(final String url) {
+        ConcurrentMap<String, Object> answers = metaDataAnswers.get(url);
+        if (answers == null) {
+            answers = new ConcurrentHashMap<String, Object>();
+            ConcurrentMap<String, Object> previous =
+                    metaDataAnswers.putIfAbsent(url, answers);
+            if (previous != null) {
+                answers = previous;
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * Discard DatabaseMetaData answers memoized by CACHE_DATABASE_METADATA,
+     * for example after upgrading the database.
+     */
+    public void clearMetaDataCache() {
+        metaDataAnswers.clear();
+    }
+
+    public long getThreshold(final Threshold threshold) {
+        return thresholds.get(Utils.checkNotNull(threshold));
+    }
+
+    public Map<Threshold, Long> getThresholds() {
+        return thresholds;
+    }
 }
@@ -16,26 +16,54 @@
 
 package com.maginatics.jdbclint;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+import com.maginatics.jdbclint.Statistics.Metric;
 
 /**
  * ConnectionProxy proxies a Connection adding some checks.
  *
  *     * whether Connection was closed
  *     * whether Connection was committed or rolled back
+ *     * whether Connection committed after every update
+ *     * whether Connection executed many updates in auto-commit mode
+ *     * whether Connection was used by several threads at once
+ *     * whether Connection.getMetaData was called repeatedly
+ *     * whether Connection selected a row right after inserting it
+ *
+ * Connections which never execute updates are counted per opening call
+ * site, and call sites proven read-only can be routed to read-only
+ * Connections so that drivers can use replicas.
  */
 public final class ConnectionProxy implements InvocationHandler {
+    private static final Pattern INSERT_TABLE = Pattern.compile(
+            "\\s*INSERT\\s+INTO\\s+([^\\s(]+)", Pattern.CASE_INSENSITIVE);
+    /** SELECT of columns by one equality predicate with a parameter. */
+    private static final Pattern SELECT_BY_KEY = Pattern.compile(
+            "\\s*SELECT\\s+(.*?)\\s+FROM\\s+([^\\s,;()]+)" +
+            "(?:\\s+(?:AS\\s+)?\\w+)?\\s+WHERE\\s+[\\w.\"`\\[\\]]+" +
+            "\\s*=\\s*\\?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern AGGREGATE = Pattern.compile(
+            "\\b(?:AVG|COUNT|MAX|MIN|SUM)\\s*\\(", Pattern.CASE_INSENSITIVE);
+
     private final Connection conn;
     private final Configuration config;
     private final Exception exception = new SQLException();
@@ -50,6 +78,36 @@ public final class ConnectionProxy implements InvocationHandler {
     private final AtomicReference<State> state =
             new AtomicReference<State>(State.OPENED);
 
+    /** Whether a commit check needs statement executions recorded. */
+    private final boolean recordingCommits;
+    private final AtomicInteger transactionStatements = new AtomicInteger();
+    private final AtomicInteger transactionUpdates = new AtomicInteger();
+    private final AtomicLong commitPerUpdateRun = new AtomicLong();
+    private final AtomicLong autoCommitUpdateRun = new AtomicLong();
+    private volatile Boolean autoCommit;
+
+    /** DataSourceProxy which created this connection, or null. */
+    private final DataSourceProxy dataSourceProxy;
+    /** Key in the DataSourceProxy open connections, or null. */
+    private final WeakReference<ConnectionProxy> reference;
+    private final long openedNanos = System.nanoTime();
+    private final ConcurrentUseDetector concurrentUse;
+    private final AtomicLong metaDataCalls = new AtomicLong();
+    private volatile DatabaseMetaData cachedMetaData;
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    /** Identifier for ExecutionListeners, or 0 if there are none. */
+    private final long id;
+    private volatile String callSite;
+    /**
+     * Whether to call setReadOnly(true) before statements, cleared for
+     * good once this Connection writes.
+     */
+    private volatile boolean routeReadOnly;
+    /** Whether setReadOnly(true) is in effect, only in auto-commit mode. */
+    private volatile boolean routedReadOnly;
+    /** Table the previous statement inserted into, or null. */
+    private volatile String insertedTable;
+
     /**
      * Create a ConnectionProxy.
      *
@@ -65,71 +123,438 @@ public final class ConnectionProxy implements InvocationHandler {
                 new ConnectionProxy(conn, config));
     }
 
+    static Connection newInstance(final DataSourceProxy dataSourceProxy,
+            final Connection conn, final Configuration config) {
+        return (Connection) Proxy.newProxyInstance(
+                conn.getClass().getClassLoader(),
+                new Class<?>[] {Connection.class},
+                new ConnectionProxy(dataSourceProxy, conn, config));
+    }
+
     ConnectionProxy(final Connection conn, final Configuration config) {
+        this(null, conn, config);
+    }
+
+    ConnectionProxy(final DataSourceProxy dataSourceProxy,
+            final Connection conn, final Configuration config) {
+        this.dataSourceProxy = dataSourceProxy;
+        if (dataSourceProxy != null) {
+            this.reference = new WeakReference<ConnectionProxy>(this);
+        } else {
+            this.reference = null;
+        }
         this.conn = Utils.checkNotNull(conn);
         this.config = Utils.checkNotNull(config);
+        this.concurrentUse = ConcurrentUseDetector.newInstance(config,
+                Check.CONNECTION_CONCURRENT_USE, "Connection");
+        if (config.hasExecutionListeners()) {
+            this.id = NEXT_ID.incrementAndGet();
+            for (Configuration.Listener listener : config.getListeners()) {
+                if (listener instanceof Configuration.ExecutionListener) {
+                    ((Configuration.ExecutionListener) listener)
+                            .connectionOpened(config, id);
+                }
+            }
+        } else {
+            this.id = 0;
+        }
+        this.routeReadOnly = isProvenReadOnly();
+        this.recordingCommits =
+                config.isEnabled(Check.CONNECTION_COMMIT_PER_UPDATE) ||
+                config.isEnabled(Check.CONNECTION_AUTO_COMMIT_UPDATES);
+    }
+
+    /** Whether earlier Connections from this call site never wrote. */
+    private boolean isProvenReadOnly() {
+        long connections = config.getThreshold(
+                Threshold.READ_ONLY_ROUTING_CONNECTIONS);
+        if (connections <= 0) {
+            return false;
+        }
+        Histogram writes = config.getStatistics().getHistogram(
+                Metric.CONNECTION_WRITES_BY_CALL_SITE, getCallSite());
+        return writes.getCount() >= connections && writes.getMax() == 0;
     }
 
     @Override
     public Object invoke(final Object proxy, final Method method,
             final Object[] args) throws Throwable {
+        if (concurrentUse == null || !concurrentUse.enter(method.getName())) {
+            return invokeChecked(proxy, method, args);
+        }
+        try {
+            return invokeChecked(proxy, method, args);
+        } finally {
+            concurrentUse.exit();
+        }
+    }
+
+    private Object invokeChecked(final Object proxy, final Method method,
+            final Object[] args) throws Throwable {
         String name = method.getName();
         if (name.equals("close")) {
-            if (config.isEnabled(Check.CONNECTION_DOUBLE_CLOSE) &&
-                    state.get() == State.CLOSED) {
-                Utils.fail(config, exception, "Connection already closed");
-            } else if (config.isEnabled(
-                            Check.CONNECTION_MISSING_COMMIT_OR_ROLLBACK) &&
-                    !conn.getAutoCommit() &&
-                    state.compareAndSet(State.IN_TRANSACTION, State.CLOSED)) {
-                conn.close();
-                Utils.fail(config, exception,
-                        "Connection did not commit or roll back");
-            } else if (config.isEnabled(
-                            Check.CONNECTION_MISSING_PREPARE_STATEMENT) &&
-                    state.compareAndSet(State.OPENED, State.CLOSED)) {
-                conn.close();
-                Utils.fail(config, exception,
-                        "Connection without prepareStatement");
-            }
-            state.set(State.CLOSED);
-            if (config.isEnabled(Check.CONNECTION_MISSING_READ_ONLY) &&
-                    isReadOnly() && !conn.isReadOnly()) {
-                conn.close();
-                Utils.fail(config, exception,
-                    "Connection did not execute updates, " +
-                    "consider calling setReadOnly");
-            }
+            close();
             return null;
         }
-        if (name.equals("commit") || name.equals("rollback")) {
+        boolean cacheMetaData = false;
+        if (name.equals("getMetaData")) {
+            checkRepeatedMetaData();
+            cacheMetaData = config.isEnabled(Check.CACHE_DATABASE_METADATA);
+            if (cacheMetaData && cachedMetaData != null) {
+                return cachedMetaData;
+            }
+        }
+        // Enabling auto-commit commits any open transaction.
+        boolean implicitCommit = name.equals("setAutoCommit") &&
+                (Boolean) args[0] && !isAutoCommit();
+        if (name.equals("commit") || name.equals("rollback") ||
+                implicitCommit) {
             state.set(State.COMMITTED);
         }
+        // setReadOnly may not be called inside a transaction, so route
+        // only in auto-commit mode and undo it before a transaction opens.
+        if (routeReadOnly && !routedReadOnly &&
+                (name.equals("createStatement") ||
+                 name.equals("prepareStatement")) && isAutoCommit()) {
+            conn.setReadOnly(true);
+            routedReadOnly = true;
+        } else if (routedReadOnly && name.equals("setAutoCommit") &&
+                !(Boolean) args[0]) {
+            routedReadOnly = false;
+            conn.setReadOnly(false);
+        }
 
+        boolean timeVirtual = VirtualThreadBlocking.shouldTime(config);
+        long startNanos = 0;
+        if (timeVirtual) {
+            startNanos = System.nanoTime();
+        }
         Object returnVal;
         try {
             returnVal = method.invoke(conn, args);
         } catch (InvocationTargetException ite) {
             throw ite.getTargetException();
         }
-        if (name.equals("createStatement")) {
+        if (timeVirtual) {
+            VirtualThreadBlocking.record(config, "Connection." + name, null,
+                    System.nanoTime() - startNanos);
+        }
+        if (name.equals("commit")) {
+            committed();
+            transactionChanged(name);
+        } else if (name.equals("rollback") && (args == null ||
+                args.length == 0)) {
+            transactionStatements.set(0);
+            transactionUpdates.set(0);
+            transactionChanged(name);
+        } else if (name.equals("setAutoCommit")) {
+            autoCommit = (Boolean) args[0];
+            autoCommitUpdateRun.set(0);
+            if (implicitCommit) {
+                committed();
+            }
+            transactionChanged(name);
+        } else if (cacheMetaData) {
+            cachedMetaData = DatabaseMetaDataProxy.newInstance(
+                    (DatabaseMetaData) returnVal, (Connection) proxy, config);
+            returnVal = cachedMetaData;
+        } else if (name.equals("createStatement")) {
             state.set(State.IN_TRANSACTION);
             returnVal = StatementProxy.newInstance(this,
                     (Statement) returnVal, config);
         } else if (name.equals("prepareStatement")) {
             state.set(State.IN_TRANSACTION);
             returnVal = StatementProxy.newInstance(this,
-                    (PreparedStatement) returnVal, config);
+                    (PreparedStatement) returnVal, (String) args[0], config);
         }
         return returnVal;
     }
 
+    private void checkRepeatedMetaData() throws SQLException {
+        if (config.isEnabled(Check.CONNECTION_REPEATED_METADATA) &&
+                metaDataCalls.incrementAndGet() == config.getThreshold(
+                        Threshold.METADATA_CALLS) + 1) {
+            Utils.fail(config, Check.CONNECTION_REPEATED_METADATA, exception,
+                    "Connection.getMetaData called more than " +
+                    config.getThreshold(Threshold.METADATA_CALLS) +
+                    " times, consider caching its answers");
+        }
+    }
+
+    private void close() throws SQLException {
+        State previous = state.getAndSet(State.CLOSED);
+        if (previous == State.CLOSED) {
+            if (config.isEnabled(Check.CONNECTION_DOUBLE_CLOSE)) {
+                Utils.fail(config, Check.CONNECTION_DOUBLE_CLOSE, exception,
+                        "Connection already closed");
+            }
+            return;
+        }
+        released();
+        // Query the connection before closing it.
+        boolean missingCommit = config.isEnabled(
+                Check.CONNECTION_MISSING_COMMIT_OR_ROLLBACK) &&
+                previous == State.IN_TRANSACTION && !conn.getAutoCommit();
+        boolean missingReadOnly = config.isEnabled(
+                Check.CONNECTION_MISSING_READ_ONLY) &&
+                isReadOnly() && !conn.isReadOnly();
+        if (config.isEnabled(Check.CONNECTION_MISSING_READ_ONLY) ||
+                config.getThreshold(
+                        Threshold.READ_ONLY_ROUTING_CONNECTIONS) > 0) {
+            long wrote = 1;
+            if (isReadOnly()) {
+                wrote = 0;
+            }
+            config.getStatistics().getHistogram(
+                    Metric.CONNECTION_WRITES_BY_CALL_SITE, getCallSite())
+                    .record(wrote);
+        }
+        try {
+            if (routedReadOnly) {
+                // Do not return a routed Connection to a pool read-only.
+                routedReadOnly = false;
+                conn.setReadOnly(false);
+            }
+        } finally {
+            conn.close();
+        }
+        if (missingCommit) {
+            Utils.fail(config, Check.CONNECTION_MISSING_COMMIT_OR_ROLLBACK,
+                    exception, "Connection did not commit or roll back");
+        } else if (config.isEnabled(
+                        Check.CONNECTION_MISSING_PREPARE_STATEMENT) &&
+                previous == State.OPENED) {
+            Utils.fail(config, Check.CONNECTION_MISSING_PREPARE_STATEMENT,
+                    exception, "Connection without prepareStatement");
+        }
+        if (missingReadOnly) {
+            Utils.fail(config, Check.CONNECTION_MISSING_READ_ONLY,
+                exception, "Connection did not execute updates, " +
+                "consider calling setReadOnly");
+        }
+    }
+
+    /** Tell ExecutionListeners about a transaction boundary. */
+    private void transactionChanged(final String method)
+            throws SQLException {
+        if (id == 0) {
+            return;
+        }
+        for (Configuration.Listener listener : config.getListeners()) {
+            if (listener instanceof Configuration.ExecutionListener) {
+                ((Configuration.ExecutionListener) listener)
+                        .transactionChanged(config, id, method,
+                                isAutoCommit());
+            }
+        }
+    }
+
+    /** Release the connection from its DataSource and listeners. */
+    private void released() {
+        if (dataSourceProxy != null) {
+            dataSourceProxy.connectionReleased(this);
+        }
+        if (id != 0) {
+            for (Configuration.Listener listener : config.getListeners()) {
+                if (listener instanceof Configuration.ExecutionListener) {
+                    ((Configuration.ExecutionListener) listener)
+                            .connectionClosed(config, id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close a connection which never reached the application, without
+     * running any checks.
+     */
+    void discard() throws SQLException {
+        if (state.getAndSet(State.CLOSED) == State.CLOSED) {
+            return;
+        }
+        released();
+        conn.close();
+    }
+
+    /** Return the key identifying this in DataSourceProxy. */
+    WeakReference<ConnectionProxy> getReference() {
+        return reference;
+    }
+
     @Override
     protected void finalize() throws SQLException {
+        if (state.get() != State.CLOSED && dataSourceProxy != null) {
+            dataSourceProxy.connectionReleased(this);
+        }
         if (config.isEnabled(Check.CONNECTION_MISSING_CLOSE) &&
                 state.get() != State.CLOSED) {
-            Utils.fail(config, exception, "Connection not closed");
+            Utils.fail(config, Check.CONNECTION_MISSING_CLOSE, exception,
+                    "Connection not closed");
+        }
+    }
+
+    /**
+     * Note that an update is about to execute, undoing read-only routing
+     * for call sites which turned out to write.
+     */
+    void updateExecuting() throws SQLException {
+        readOnly.set(false);
+        routeReadOnly = false;
+        if (routedReadOnly) {
+            routedReadOnly = false;
+            conn.setReadOnly(false);
+        }
+    }
+
+    /**
+     * Correlate an execution with the previous one on this Connection.  A
+     * SELECT of a single key from the table the previous statement inserted
+     * into usually reads back a generated key or default, which
+     * getGeneratedKeys returns without another round trip.  Aggregates and
+     * other queries are not reads of the inserted row.
+     */
+    void checkInsertThenSelect(final String method, final String sql,
+            final Exception creationSite, final long elapsedNanos)
+            throws SQLException {
+        String previous = insertedTable;
+        insertedTable = null;
+        if (sql == null || method.endsWith("Batch")) {
+            return;
+        }
+        Matcher matcher = INSERT_TABLE.matcher(sql);
+        if (matcher.lookingAt()) {
+            insertedTable = normalizeTable(matcher.group(1));
+            return;
+        }
+        if (previous == null) {
+            return;
+        }
+        matcher = SELECT_BY_KEY.matcher(sql);
+        if (!matcher.matches() ||
+                !previous.equals(normalizeTable(matcher.group(2))) ||
+                AGGREGATE.matcher(matcher.group(1)).find()) {
+            return;
+        }
+        String site = Utils.callSite(creationSite);
+        Histogram histogram = config.getStatistics().getHistogram(
+                Metric.INSERT_THEN_SELECT_BY_CALL_SITE, site);
+        histogram.record(elapsedNanos);
+        if (histogram.getCount() == config.getThreshold(
+                Threshold.INSERT_THEN_SELECT_COUNT)) {
+            Utils.fail(config, Check.CONNECTION_INSERT_THEN_SELECT, sql,
+                    creationSite, "Connection selected from " + previous +
+                    " right after inserting into it " +
+                    histogram.getCount() + " times at " + site + ", " +
+                    "consider getGeneratedKeys to save these round trips");
+        }
+    }
+
+    private static String normalizeTable(final String table) {
+        return table.replaceAll("[\"`\\[\\]]", "").toLowerCase();
+    }
+
+    /** Note that the previous insert's generated keys were read. */
+    void generatedKeysRead() {
+        insertedTable = null;
+    }
+
+    /** Return whether this Connection was routed read-only. */
+    boolean isRoutedReadOnly() {
+        return routedReadOnly;
+    }
+
+    /** Return whether statementExecuted needs to be called. */
+    boolean isRecordingCommits() {
+        return recordingCommits;
+    }
+
+    /**
+     * Record a statement execution.
+     *
+     * @param updates number of updates executed, zero for queries
+     */
+    void statementExecuted(final int updates) throws SQLException {
+        if (!isAutoCommit()) {
+            transactionStatements.incrementAndGet();
+            transactionUpdates.addAndGet(updates);
+            return;
+        }
+        // Each statement commits on its own in auto-commit mode.
+        recordStatementsPerCommit(1);
+        if (updates != 0 &&
+                config.isEnabled(Check.CONNECTION_AUTO_COMMIT_UPDATES)) {
+            long threshold = config.getThreshold(
+                    Threshold.AUTO_COMMIT_UPDATES);
+            long run = autoCommitUpdateRun.addAndGet(updates);
+            if (run >= threshold && run - updates < threshold) {
+                Utils.fail(config, Check.CONNECTION_AUTO_COMMIT_UPDATES,
+                        exception, "Connection executed " +
+                        run + " updates in auto-commit mode, " +
+                        "consider grouping them into transactions");
+            }
+        }
+    }
+
+    private void recordStatementsPerCommit(final int statements) {
+        if (recordingCommits) {
+            config.getStatistics().getHistogram(
+                    Metric.STATEMENTS_PER_COMMIT_BY_CALL_SITE, getCallSite())
+                    .record(statements);
+        }
+    }
+
+    private void committed() throws SQLException {
+        recordStatementsPerCommit(transactionStatements.getAndSet(0));
+        int updates = transactionUpdates.getAndSet(0);
+        if (updates == 0) {
+            return;
+        } else if (updates > 1) {
+            commitPerUpdateRun.set(0);
+            return;
+        }
+        long threshold = config.getThreshold(
+                Threshold.COMMIT_PER_UPDATE_COMMITS);
+        if (config.isEnabled(Check.CONNECTION_COMMIT_PER_UPDATE) &&
+                commitPerUpdateRun.incrementAndGet() == threshold) {
+            Utils.fail(config, Check.CONNECTION_COMMIT_PER_UPDATE,
+                    exception, "Connection committed after " +
+                    "each of " + threshold + " updates, " +
+                    "consider grouping updates into larger transactions");
+        }
+    }
+
+    private boolean isAutoCommit() throws SQLException {
+        Boolean cached = autoCommit;
+        if (cached == null) {
+            cached = conn.getAutoCommit();
+            autoCommit = cached;
+        }
+        return cached;
+    }
+
+    /** Return the detector for concurrent use, or null if disabled. */
+    ConcurrentUseDetector getConcurrentUseDetector() {
+        return concurrentUse;
+    }
+
+    /** Return how long this connection has been open. */
+    long getOpenNanos() {
+        return System.nanoTime() - openedNanos;
+    }
+
+    /** Return the identifier passed to ExecutionListeners, or 0. */
+    long getId() {
+        return id;
+    }
+
+    /** Return the call site which opened this connection. */
+    String getCallSite() {
+        String site = callSite;
+        if (site == null) {
+            site = Utils.callSite(exception);
+            callSite = site;
         }
+        return site;
     }
 
     public void setReadOnly(final boolean readOnly) {
@@ -16,19 +16,51 @@
 
 package com.maginatics.jdbclint;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
-/** DataSourceProxy proxies a DataSource adding some checks. */
+import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+
+/**
+ * DataSourceProxy proxies a DataSource adding some checks.
+ *
+ *     * whether getConnection was slow, usually due to pool exhaustion
+ *
+ * It also records getConnection latency and the number of connections
+ * checked out, that is returned by getConnection and not yet closed.
+ */
 public final class DataSourceProxy implements InvocationHandler {
+    private static final int TOP_HOLDERS = 5;
+
     private final DataSource dataSource;
     private final Configuration config;
 
+    private final Histogram getConnectionNanos = new Histogram();
+    private final AtomicInteger checkedOut = new AtomicInteger();
+    private final AtomicInteger maxCheckedOut = new AtomicInteger();
+    // Weak so that leaked connections can still be finalized and reported.
+    private final Set<WeakReference<ConnectionProxy>> openConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<
+                    WeakReference<ConnectionProxy>, Boolean>());
+
     /**
      * Create a DataSourceProxy.
      *
@@ -53,16 +85,125 @@ public final class DataSourceProxy implements InvocationHandler {
     @Override
     public Object invoke(final Object proxy, final Method method,
             final Object[] args) throws Throwable {
-        Object returnVal;
+        if (!method.getName().equals("getConnection")) {
+            try {
+                return method.invoke(dataSource, args);
+            } catch (InvocationTargetException ite) {
+                throw ite.getTargetException();
+            }
+        }
+        long startNanos = System.nanoTime();
+        long elapsedNanos;
+        Connection conn;
         try {
-            returnVal = method.invoke(dataSource, args);
+            conn = (Connection) method.invoke(dataSource, args);
         } catch (InvocationTargetException ite) {
             throw ite.getTargetException();
+        } finally {
+            // Failures such as pool timeouts are the slowest acquisitions.
+            elapsedNanos = System.nanoTime() - startNanos;
+            getConnectionNanos.record(elapsedNanos);
+        }
+        WorkUnit.connectionAcquired(elapsedNanos);
+        ConnectionProxy connectionProxy = new ConnectionProxy(this, conn,
+                config);
+        connectionAcquired(connectionProxy, elapsedNanos);
+        return Proxy.newProxyInstance(conn.getClass().getClassLoader(),
+                new Class<?>[] {Connection.class}, connectionProxy);
+    }
+
+    private void connectionAcquired(final ConnectionProxy connectionProxy,
+            final long elapsedNanos) throws SQLException {
+        int current = checkedOut.incrementAndGet();
+        while (true) {
+            int max = maxCheckedOut.get();
+            if (current <= max || maxCheckedOut.compareAndSet(max, current)) {
+                break;
+            }
+        }
+        openConnections.add(connectionProxy.getReference());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (!config.isEnabled(Check.DATA_SOURCE_SLOW_GET_CONNECTION) ||
+                elapsedMillis < config.getThreshold(
+                        Threshold.GET_CONNECTION_MILLIS)) {
+            return;
+        }
+        boolean reported = false;
+        try {
+            Utils.fail(config, Check.DATA_SOURCE_SLOW_GET_CONNECTION,
+                    new SQLException(), "DataSource getConnection took " +
+                    elapsedMillis + " ms with " + (current - 1) +
+                    " connections checked out (maximum " +
+                    maxCheckedOut.get() + "), top holders: " +
+                    getTopHolders());
+            reported = true;
+        } finally {
+            // The caller never receives the connection if an action threw.
+            if (!reported) {
+                connectionProxy.discard();
+            }
         }
-        if (method.getName().equals("getConnection")) {
-            returnVal = ConnectionProxy.newInstance(
-                    (Connection) returnVal, config);
+    }
+
+    void connectionReleased(final ConnectionProxy connectionProxy) {
+        openConnections.remove(connectionProxy.getReference());
+        checkedOut.decrementAndGet();
+    }
+
+    /**
+     * Summarize checked-out connections by the call site which opened them,
+     * most connections first.
+     */
+    String getTopHolders() {
+        final Map<String, long[]> holders = new HashMap<String, long[]>();
+        for (WeakReference<ConnectionProxy> reference : openConnections) {
+            ConnectionProxy proxy = reference.get();
+            if (proxy == null) {
+                continue;
+            }
+            String callSite = proxy.getCallSite();
+            long[] countAndOldest = holders.get(callSite);
+            if (countAndOldest == null) {
+                countAndOldest = new long[2];
+                holders.put(callSite, countAndOldest);
+            }
+            ++countAndOldest[0];
+            countAndOldest[1] = Math.max(countAndOldest[1],
+                    proxy.getOpenNanos());
+        }
+        List<String> callSites = new ArrayList<String>(holders.keySet());
+        Collections.sort(callSites, new Comparator<String>() {
+            @Override
+            public int compare(final String a, final String b) {
+                return Long.valueOf(holders.get(b)[0]).compareTo(
+                        holders.get(a)[0]);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (String callSite : callSites.subList(0,
+                Math.min(TOP_HOLDERS, callSites.size()))) {
+            long[] countAndOldest = holders.get(callSite);
+            sb.append("\n    ").append(countAndOldest[0])
+              .append(" held by ").append(callSite)
+              .append(", oldest ")
+              .append(TimeUnit.NANOSECONDS.toMillis(countAndOldest[1]))
+              .append(" ms");
         }
-        return returnVal;
+        return sb.toString();
+    }
+
+    /** Return the distribution of getConnection latency in nanoseconds. */
+    public Histogram getConnectionNanos() {
+        return getConnectionNanos;
+    }
+
+    /** Return the number of connections currently checked out. */
+    public int getCheckedOutConnections() {
+        return checkedOut.get();
+    }
+
+    /** Return the maximum number of connections checked out at once. */
+    public int getMaxCheckedOutConnections() {
+        return maxCheckedOut.get();
     }
 }
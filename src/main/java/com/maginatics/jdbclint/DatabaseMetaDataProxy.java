@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * DatabaseMetaDataProxy memoizes DatabaseMetaData answers which cannot
+ * change for a given database, such as supportsBatchUpdates or
+ * getDatabaseProductVersion, across connections to the same URL using the
+ * same Configuration.  Some drivers query the server for these on every
+ * call.  Only methods without arguments returning a primitive or String are
+ * memoized, and nothing is memoized when the driver reports no URL.
+ */
+final class DatabaseMetaDataProxy implements InvocationHandler {
+    /** Answers which vary by connection or session. */
+    private static final Set<String> MUTABLE =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                    "getUserName",
+                    "isReadOnly")));
+    private static final Object NULL = new Object();
+
+    private final DatabaseMetaData metaData;
+    private final Connection connection;
+    /** Answers shared by connections to the same URL, or null. */
+    private final ConcurrentMap<String, Object> answers;
+
+    static DatabaseMetaData newInstance(final DatabaseMetaData metaData,
+            final Connection connection, final Configuration config)
+            throws SQLException {
+        return (DatabaseMetaData) Proxy.newProxyInstance(
+                metaData.getClass().getClassLoader(),
+                new Class<?>[] {DatabaseMetaData.class},
+                new DatabaseMetaDataProxy(metaData, connection, config));
+    }
+
+    private DatabaseMetaDataProxy(final DatabaseMetaData metaData,
+            final Connection connection, final Configuration config)
+            throws SQLException {
+        this.metaData = Utils.checkNotNull(metaData);
+        this.connection = Utils.checkNotNull(connection);
+        String url = metaData.getURL();
+        if (url == null) {
+            // Answers cannot be attributed to a database.
+            this.answers = null;
+        } else {
+            this.answers = config.getMetaDataAnswers(url);
+        }
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method,
+            final Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getConnection")) {
+            // Return the proxied connection rather than the driver's.
+            return connection;
+        }
+        boolean memoize = answers != null &&
+                (args == null || args.length == 0) &&
+                !MUTABLE.contains(name) &&
+                (method.getReturnType().isPrimitive() ||
+                 method.getReturnType() == String.class);
+        if (memoize) {
+            Object answer = answers.get(name);
+            if (answer == NULL) {
+                return null;
+            } else if (answer != null) {
+                return answer;
+            }
+        }
+
+        Object returnVal;
+        try {
+            returnVal = method.invoke(metaData, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getTargetException();
+        }
+        if (memoize) {
+            if (returnVal == null) {
+                answers.put(name, NULL);
+            } else {
+                answers.put(name, returnVal);
+            }
+        }
+        return returnVal;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+
+/**
+ * ExplainSampler is a Listener which explains slow or frequent queries and
+ * reports QUERY_FULL_SCAN for plans which scan whole tables.  It runs
+ * EXPLAIN on a separate connection from a background thread, at most once
+ * per SQL fingerprint and at most once per EXPLAIN_INTERVAL_MILLIS, and
+ * drops work when busy.  Since checks fail off the calling thread, Actions
+ * which throw only abort the background task.
+ */
+public final class ExplainSampler implements Configuration.Listener,
+        Closeable {
+    private static final int MAX_TRACKED_QUERIES = 10000;
+    private static final int QUEUE_SIZE = 16;
+
+    /** Database-specific EXPLAIN syntax and plan parsing. */
+    public interface PlanParser {
+        /** Return the statement which explains sql. */
+        String explain(String sql);
+
+        /** Return the tables which plan scans fully. */
+        List<String> findFullScans(ResultSet plan) throws SQLException;
+    }
+
+    /** H2 marks full scans with a tableScan comment. */
+    public static final PlanParser H2_PLAN_PARSER =
+            new RegexPlanParser("EXPLAIN ",
+                    Pattern.compile("/\\* (\\S+)\\.tableScan \\*/"));
+
+    /** PostgreSQL reports full scans as Seq Scan nodes. */
+    public static final PlanParser POSTGRESQL_PLAN_PARSER =
+            new RegexPlanParser("EXPLAIN ",
+                    Pattern.compile("Seq Scan on (\\S+)"));
+
+    /** MySQL reports full scans with access type ALL. */
+    public static final PlanParser MYSQL_PLAN_PARSER = new PlanParser() {
+        @Override
+        public String explain(final String sql) {
+            return "EXPLAIN " + sql;
+        }
+
+        @Override
+        public List<String> findFullScans(final ResultSet plan)
+                throws SQLException {
+            List<String> tables = new ArrayList<String>();
+            while (plan.next()) {
+                if ("ALL".equalsIgnoreCase(plan.getString("type"))) {
+                    tables.add(plan.getString("table"));
+                }
+            }
+            return tables;
+        }
+    };
+
+    /** Parser which matches a pattern against every plan column. */
+    private static final class RegexPlanParser implements PlanParser {
+        private final String prefix;
+        private final Pattern pattern;
+
+        RegexPlanParser(final String prefix, final Pattern pattern) {
+            this.prefix = prefix;
+            this.pattern = pattern;
+        }
+
+        @Override
+        public String explain(final String sql) {
+            return prefix + sql;
+        }
+
+        @Override
+        public List<String> findFullScans(final ResultSet plan)
+                throws SQLException {
+            List<String> tables = new ArrayList<String>();
+            int columns = plan.getMetaData().getColumnCount();
+            while (plan.next()) {
+                for (int i = 1; i <= columns; ++i) {
+                    String text = plan.getString(i);
+                    if (text == null) {
+                        continue;
+                    }
+                    Matcher matcher = pattern.matcher(text);
+                    while (matcher.find()) {
+                        tables.add(matcher.group(1));
+                    }
+                }
+            }
+            return tables;
+        }
+    }
+
+    private final DataSource dataSource;
+    private final PlanParser planParser;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, AtomicLong> executions =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final Set<String> explained = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong nextExplainNanos = new AtomicLong(
+            System.nanoTime());
+
+    /**
+     * Create an ExplainSampler.
+     *
+     * @param dataSource unproxied DataSource used to run EXPLAIN
+     * @param planParser parser for the database behind dataSource
+     */
+    public ExplainSampler(final DataSource dataSource,
+            final PlanParser planParser) {
+        this.dataSource = Utils.checkNotNull(dataSource);
+        this.planParser = Utils.checkNotNull(planParser);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "jdbclint-explain");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    @Override
+    public void statementExecuted(final Configuration config,
+            final String sql, final long elapsedNanos,
+            final Exception creationSite) {
+        if (sql == null || !config.isEnabled(Check.QUERY_FULL_SCAN) ||
+                !isQuery(sql)) {
+            return;
+        }
+        String fingerprint = Utils.fingerprint(sql);
+        if (explained.contains(fingerprint)) {
+            return;
+        }
+        boolean sample = TimeUnit.NANOSECONDS.toMillis(elapsedNanos) >=
+                config.getThreshold(Threshold.EXPLAIN_SLOW_QUERY_MILLIS);
+        AtomicLong count = executions.get(fingerprint);
+        if (count == null && executions.size() < MAX_TRACKED_QUERIES) {
+            count = new AtomicLong();
+            AtomicLong previous = executions.putIfAbsent(fingerprint, count);
+            if (previous != null) {
+                count = previous;
+            }
+        }
+        if (count != null && count.incrementAndGet() >= config.getThreshold(
+                Threshold.EXPLAIN_FREQUENT_QUERY_COUNT)) {
+            sample = true;
+        }
+        if (!sample || !tryAcquire(config) ||
+                explained.size() >= MAX_TRACKED_QUERIES ||
+                !explained.add(fingerprint)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        explain(config, sql, creationSite);
+                    } catch (SQLException sqle) {
+                        // explaining is best effort
+                    } catch (RuntimeException re) {
+                        // explaining is best effort
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // queue full or closed; allow a later execution to sample again
+            explained.remove(fingerprint);
+            return;
+        }
+        executions.remove(fingerprint);
+    }
+
+    /** Stop the background thread, dropping queued queries. */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** Wait for queued queries to be explained, for testing. */
+    boolean awaitQuiescence(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (executor.getActiveCount() > 0 ||
+                !executor.getQueue().isEmpty() ||
+                executor.getCompletedTaskCount() < executor.getTaskCount()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private void explain(final Configuration config, final String sql,
+            final Exception creationSite) throws SQLException {
+        List<String> tables;
+        Connection conn = dataSource.getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(
+                    planParser.explain(sql));
+            try {
+                int parameters = stmt.getParameterMetaData()
+                        .getParameterCount();
+                for (int i = 1; i <= parameters; ++i) {
+                    stmt.setNull(i, Types.NULL);
+                }
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    tables = planParser.findFullScans(rs);
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+        if (!tables.isEmpty()) {
+            Utils.fail(config, Check.QUERY_FULL_SCAN, sql, creationSite,
+                    "Query scans full table " + tables + ": " + sql);
+        }
+    }
+
+    private static boolean isQuery(final String sql) {
+        String prefix = sql.trim();
+        if (prefix.length() > 6) {
+            prefix = prefix.substring(0, 6);
+        }
+        prefix = prefix.toUpperCase(Locale.ENGLISH);
+        return prefix.startsWith("SELECT") || prefix.startsWith("WITH");
+    }
+
+    private boolean tryAcquire(final Configuration config) {
+        long now = System.nanoTime();
+        long next = nextExplainNanos.get();
+        return now - next >= 0 && nextExplainNanos.compareAndSet(next,
+                now + TimeUnit.MILLISECONDS.toNanos(config.getThreshold(
+                        Threshold.EXPLAIN_INTERVAL_MILLIS)));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram records non-negative values into power-of-two buckets.  Bucket
+ * i holds values in [2^(i-1), 2^i) with bucket 0 holding only zero.
+ * Recording does not allocate and is safe to call from multiple threads.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long value) {
+        long clamped = Math.max(0, value);
+        buckets.incrementAndGet(bucketIndex(clamped));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        while (true) {
+            long current = max.get();
+            if (clamped <= current || max.compareAndSet(current, clamped)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        return (double) sum.get() / n;
+    }
+
+    /**
+     * Return an upper bound for the given percentile.
+     *
+     * @param percentile value between 0 and 100
+     * @return exclusive upper bound of the bucket containing the percentile,
+     *         capped at the maximum recorded value
+     */
+    public long getPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "percentile out of range: " + percentile);
+        }
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(bucketLimit(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Return the number of values recorded in the bucket containing value.
+     */
+    public long getBucketCount(final long value) {
+        return buckets.get(bucketIndex(Math.max(0, value)));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(getCount())
+          .append(" mean=").append(String.format("%.1f", getMean()))
+          .append(" p50=").append(getPercentile(50))
+          .append(" p99=").append(getPercentile(99))
+          .append(" max=").append(getMax())
+          .append(" [");
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; ++i) {
+            long bucket = buckets.get(i);
+            if (bucket == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append('<').append(bucketLimit(i)).append(':').append(bucket);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static int bucketIndex(final long value) {
+        return Math.min(BUCKETS - Long.numberOfLeadingZeros(value),
+                BUCKETS - 1);
+    }
+
+    private static long bucketLimit(final int index) {
+        if (index >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << index;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+
+/**
+ * IdleCursorSweeper finds open Statements and ResultSets which have not
+ * been used for a while, usually because the application holds them open
+ * during think time, pinning server-side cursors and locks.  Proxies only
+ * timestamp their calls through a Tracker; a single daemon thread visits
+ * all Trackers once per second.  Trackers are held weakly so that leaked
+ * proxies can still be finalized.
+ */
+final class IdleCursorSweeper implements Runnable {
+    private static final long SWEEP_MILLIS = 1000;
+    private static final IdleCursorSweeper INSTANCE = new IdleCursorSweeper();
+
+    private final Queue<WeakReference<Tracker>> trackers =
+            new ConcurrentLinkedQueue<WeakReference<Tracker>>();
+    private volatile Thread thread;
+
+    private IdleCursorSweeper() {
+    }
+
+    static IdleCursorSweeper getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Return a registered Tracker for a proxy, or null if check is
+     * disabled.
+     */
+    Tracker track(final Configuration config, final Check check,
+            final String className, final String sql,
+            final Exception exception) {
+        if (!config.isEnabled(check)) {
+            return null;
+        }
+        Tracker tracker = new Tracker(config, check, className, sql,
+                exception);
+        startThread();
+        trackers.add(new WeakReference<Tracker>(tracker));
+        return tracker;
+    }
+
+    private void startThread() {
+        if (thread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (thread == null) {
+                Thread newThread = new Thread(this, "jdbclint-idle-sweeper");
+                newThread.setDaemon(true);
+                newThread.start();
+                thread = newThread;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            sweep();
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Iterator<WeakReference<Tracker>> it = trackers.iterator();
+                it.hasNext();) {
+            Tracker tracker = it.next().get();
+            try {
+                if (tracker == null || !tracker.sweep(now)) {
+                    it.remove();
+                }
+            } catch (SQLException sqle) {
+                // the configured actions already ran; nobody to throw to
+            } catch (RuntimeException re) {
+                // the configured actions already ran; nobody to throw to
+            }
+        }
+    }
+
+    /** Call timestamps of one Statement or ResultSet. */
+    static final class Tracker {
+        private static final AtomicIntegerFieldUpdater<Tracker> CALLS =
+                AtomicIntegerFieldUpdater.newUpdater(Tracker.class, "calls");
+
+        private final Configuration config;
+        private final Check check;
+        private final String className;
+        private final Exception exception;
+        /** Milliseconds between the end of one call and the next. */
+        private final Histogram gapMillis = new Histogram();
+        private volatile String sql;
+        private volatile long lastUseNanos = System.nanoTime();
+        /** Calls in progress, which do not count as idle. */
+        private volatile int calls;
+        private volatile boolean closed;
+        private volatile boolean reported;
+
+        private Tracker(final Configuration config, final Check check,
+                final String className, final String sql,
+                final Exception exception) {
+            this.config = config;
+            this.check = check;
+            this.className = className;
+            this.sql = sql;
+            this.exception = exception;
+        }
+
+        void enter() {
+            if (CALLS.getAndIncrement(this) == 0) {
+                gapMillis.record(TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - lastUseNanos));
+            }
+        }
+
+        void exit() {
+            lastUseNanos = System.nanoTime();
+            CALLS.decrementAndGet(this);
+        }
+
+        void setSql(final String sql) {
+            this.sql = sql;
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        /**
+         * Report the cursor once if it has been idle too long.
+         *
+         * @return false once the cursor is closed and can be dropped
+         */
+        private boolean sweep(final long nowNanos) throws SQLException {
+            if (closed) {
+                return false;
+            }
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(
+                    nowNanos - lastUseNanos);
+            if (calls == 0 && !reported && idleMillis >=
+                    config.getThreshold(Threshold.IDLE_OPEN_MILLIS)) {
+                reported = true;
+                Utils.fail(config, check, sql, exception, className +
+                        " open and idle for " + idleMillis +
+                        " ms, gaps between calls in ms: " + gapMillis);
+            }
+            return true;
+        }
+    }
+}
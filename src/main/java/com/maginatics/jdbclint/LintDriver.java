@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * LintDriver accepts URLs of the form jdbc:lint:REAL_URL, delegates to the
+ * Driver for REAL_URL and wraps the returned Connection with a
+ * ConnectionProxy.  JDBC lint options may follow a question mark, for
+ * example:
+ *
+ *     jdbc:lint:jdbc:mysql://host/db?useSSL=false&checks=all
+ *
+ * Keys understood by Configuration.fromProperties are removed before
+ * passing the URL to the real driver; other parameters are preserved.  This
+ * allows enabling JDBC lint in applications and pools configured only by
+ * URL.  Parsed URLs are cached so repeated connections do not reparse them.
+ */
+public final class LintDriver implements Driver {
+    public static final String URL_PREFIX = "jdbc:lint:";
+
+    private static final ConcurrentMap<String, ParsedUrl> PARSED_URLS =
+            new ConcurrentHashMap<String, ParsedUrl>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new LintDriver());
+        } catch (SQLException sqle) {
+            throw new ExceptionInInitializerError(sqle);
+        }
+    }
+
+    /** Parsed URL with its real URL, configuration and delegate driver. */
+    private static final class ParsedUrl {
+        private final String realUrl;
+        private final Configuration config;
+        private volatile Driver driver;
+
+        ParsedUrl(final String realUrl, final Configuration config) {
+            this.realUrl = realUrl;
+            this.config = config;
+        }
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info)
+            throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        ParsedUrl parsed = parse(url);
+        long startNanos = System.nanoTime();
+        Connection conn = getDriver(parsed).connect(parsed.realUrl, info);
+        if (conn == null) {
+            return null;
+        }
+        WorkUnit.connectionAcquired(System.nanoTime() - startNanos);
+        return ConnectionProxy.newInstance(conn, parsed.config);
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url,
+            final Properties info) throws SQLException {
+        ParsedUrl parsed = parse(url);
+        return getDriver(parsed).getPropertyInfo(parsed.realUrl, info);
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 0;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 6;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    /** Added in Java 7; declared without Override to build on Java 6. */
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static ParsedUrl parse(final String url) throws SQLException {
+        ParsedUrl parsed = PARSED_URLS.get(url);
+        if (parsed != null) {
+            return parsed;
+        }
+        if (url == null || !url.startsWith(URL_PREFIX)) {
+            throw new SQLException("URL must start with " + URL_PREFIX +
+                    ": " + url);
+        }
+        String realUrl = url.substring(URL_PREFIX.length());
+        Properties properties = new Properties();
+        int index = realUrl.lastIndexOf('?');
+        if (index != -1) {
+            StringBuilder remaining = new StringBuilder();
+            for (String param : realUrl.substring(index + 1).split("&")) {
+                int equals = param.indexOf('=');
+                String key = param;
+                String value = "";
+                if (equals != -1) {
+                    key = param.substring(0, equals);
+                    value = param.substring(equals + 1);
+                }
+                if (isLintKey(key)) {
+                    properties.setProperty(key, value);
+                } else if (!param.isEmpty()) {
+                    if (remaining.length() > 0) {
+                        remaining.append('&');
+                    }
+                    remaining.append(param);
+                }
+            }
+            realUrl = realUrl.substring(0, index);
+            if (remaining.length() > 0) {
+                realUrl += "?" + remaining;
+            }
+        }
+        Configuration config;
+        try {
+            config = Configuration.fromProperties(properties);
+        } catch (IllegalArgumentException iae) {
+            throw new SQLException("Invalid JDBC lint URL: " + url, iae);
+        }
+        parsed = new ParsedUrl(realUrl, config);
+        ParsedUrl previous = PARSED_URLS.putIfAbsent(url, parsed);
+        if (previous != null) {
+            return previous;
+        }
+        return parsed;
+    }
+
+    private static boolean isLintKey(final String key) {
+        if (key.equals("checks") || key.equals("actions") ||
+                key.equals("file")) {
+            return true;
+        }
+        for (Configuration.Threshold threshold :
+                Configuration.Threshold.values()) {
+            if (threshold.name().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Driver getDriver(final ParsedUrl parsed)
+            throws SQLException {
+        Driver driver = parsed.driver;
+        if (driver == null) {
+            driver = DriverManager.getDriver(parsed.realUrl);
+            parsed.driver = driver;
+        }
+        return driver;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+/**
+ * Parameter bound with PreparedStatement.setNull, passed to
+ * ExecutionListeners so that the SQL type can be replayed.
+ */
+public final class NullParameter {
+    private final int sqlType;
+
+    NullParameter(final int sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    /** Return the type from java.sql.Types passed to setNull. */
+    public int getSqlType() {
+        return sqlType;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof NullParameter &&
+                ((NullParameter) other).sqlType == sqlType;
+    }
+
+    @Override
+    public int hashCode() {
+        return sqlType;
+    }
+
+    @Override
+    public String toString() {
+        return "NULL(" + sqlType + ")";
+    }
+}
@@ -26,17 +26,29 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
 
 /**
  * ResultSetProxy proxies a ResultSet adding some checks.
  *
  *     * whether ResultSet was closed
  *     * whether all columns were consumed
+ *     * whether ResultSet was used by several threads at once
+ *     * whether a scrollable or updatable ResultSet was only read forward
+ *     * whether ResultSet.getMetaData was called repeatedly
+ *     * whether many rows were read using only column labels
+ *     * whether ResultSet stayed open and idle for long
+ *
+ * ResultSetMetaData and column labels are fetched once per ResultSet.
+ * Statements return the driver's ResultSet unwrapped when no check
+ * applies to it, and per-ResultSet flags and counters share one long.
  */
 final class ResultSetProxy implements InvocationHandler {
     private static final Set<String> GETTERS =
@@ -69,56 +81,228 @@ final class ResultSetProxy implements InvocationHandler {
                     "getTimestamp",
                     "getUnicodeStream",
                     "getURL")));
+    private static final Set<String> SCROLLS =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                    "absolute",
+                    "afterLast",
+                    "beforeFirst",
+                    "first",
+                    "last",
+                    "previous",
+                    "relative")));
+    /** Checks which report the creation site. */
+    private static final Set<Check> CREATION_SITE_CHECKS =
+            Collections.unmodifiableSet(EnumSet.of(
+                    Check.RESULT_SET_DOUBLE_CLOSE,
+                    Check.RESULT_SET_IDLE_OPEN,
+                    Check.RESULT_SET_LABEL_GETTERS,
+                    Check.RESULT_SET_MISSING_CLOSE,
+                    Check.RESULT_SET_REPEATED_METADATA,
+                    Check.RESULT_SET_UNREAD_COLUMN,
+                    Check.RESULT_SET_UNUSED_SCROLL_OR_UPDATE));
 
     private final ResultSet rs;
+    /** SQL of the statement which created this, or null if unknown. */
+    private final String sql;
     private final Configuration config;
-    private final SQLException exception = new SQLException();
+    /** Creation site, or null if no enabled check reports it. */
+    private final SQLException exception;
+
+    // Flags in the low byte, then saturating counters of getMetaData calls
+    // and rows read by label getters.
+    private static final long CLOSED = 1;
+    private static final long SCROLLED = 1 << 1;
+    private static final long UPDATED = 1 << 2;
+    private static final long INDEX_GETTERS = 1 << 3;
+    private static final int METADATA_CALLS_SHIFT = 8;
+    private static final long METADATA_CALLS_MASK = 0xFFFFFFL << 8;
+    private static final int ROWS_READ_SHIFT = 32;
+    private static final long ROWS_READ_MASK = 0xFFFFFFFFL << 32;
+    private static final AtomicLongFieldUpdater<ResultSetProxy> STATE =
+            AtomicLongFieldUpdater.newUpdater(ResultSetProxy.class, "state");
 
-    private final AtomicBoolean closed = new AtomicBoolean();
-    private final Set<String> unreadColumns = new HashSet<String>();
+    private volatile long state;
+    /** Unread column labels, or null if RESULT_SET_UNREAD_COLUMN is off. */
+    private final Set<String> unreadColumns;
+    private final ConcurrentUseDetector concurrentUse;
+    private volatile ResultSetMetaData metaData;
+    /** Lower-case column labels indexed from 1, or null if not yet read. */
+    private volatile String[] columnLabels;
+    private final boolean checkLabelGetters;
+    /** Labels read by getters, or null if RESULT_SET_LABEL_GETTERS is off. */
+    private final Set<String> labelGetterColumns;
+    /** Call timestamps, or null if RESULT_SET_IDLE_OPEN is off. */
+    private final IdleCursorSweeper.Tracker idle;
+    /** Tracker of the creating Statement, which this keeps busy. */
+    private final IdleCursorSweeper.Tracker statementIdle;
 
-    static ResultSet newInstance(final ResultSet rs,
-            final Configuration config) {
+    /**
+     * Return a proxied ResultSet, or rs itself if nothing would observe it.
+     */
+    static ResultSet newInstance(final ResultSet rs, final String sql,
+            final Configuration config,
+            final IdleCursorSweeper.Tracker statementIdle) {
+        if (!config.wrapsResultSets() && WorkUnit.current() == null) {
+            return rs;
+        }
         return (ResultSet) Proxy.newProxyInstance(
                 rs.getClass().getClassLoader(),
                 new Class<?>[] {ResultSet.class},
-                new ResultSetProxy(rs, config));
+                new ResultSetProxy(rs, sql, config, statementIdle));
     }
 
-    ResultSetProxy(final ResultSet rs, final Configuration config) {
+    ResultSetProxy(final ResultSet rs, final String sql,
+            final Configuration config,
+            final IdleCursorSweeper.Tracker statementIdle) {
         this.rs = Utils.checkNotNull(rs);
+        this.sql = sql;
         this.config = Utils.checkNotNull(config);
+        this.statementIdle = statementIdle;
+        this.exception = newCreationSite(config);
+        this.idle = IdleCursorSweeper.getInstance().track(config,
+                Check.RESULT_SET_IDLE_OPEN, "ResultSet", sql, exception);
+        this.concurrentUse = ConcurrentUseDetector.newInstance(config,
+                Check.RESULT_SET_CONCURRENT_USE, "ResultSet");
+        this.checkLabelGetters = config.isEnabled(
+                Check.RESULT_SET_LABEL_GETTERS);
+        this.unreadColumns = newConcurrentSet(config.isEnabled(
+                Check.RESULT_SET_UNREAD_COLUMN));
+        this.labelGetterColumns = newConcurrentSet(checkLabelGetters);
+    }
+
+    /**
+     * Capture the creation site only if an enabled check can report it,
+     * since filling in a stack trace dominates proxy creation.
+     */
+    private static SQLException newCreationSite(final Configuration config) {
+        for (Check check : CREATION_SITE_CHECKS) {
+            if (config.isEnabled(check)) {
+                return new SQLException();
+            }
+        }
+        return null;
+    }
+
+    private static Set<String> newConcurrentSet(final boolean enabled) {
+        if (!enabled) {
+            return null;
+        }
+        return Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /** Set flag and return whether it was already set. */
+    private boolean setFlag(final long flag) {
+        while (true) {
+            long current = state;
+            if ((current & flag) != 0) {
+                return true;
+            } else if (STATE.compareAndSet(this, current, current | flag)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean hasFlag(final long flag) {
+        return (state & flag) != 0;
+    }
+
+    /**
+     * Increment the counter under mask, which stops at its maximum, and
+     * return its new value.
+     */
+    private long increment(final long mask, final int shift) {
+        while (true) {
+            long current = state;
+            if ((current & mask) == mask) {
+                return mask >>> shift;
+            }
+            long update = current + (1L << shift);
+            if (STATE.compareAndSet(this, current, update)) {
+                return (update & mask) >>> shift;
+            }
+        }
     }
 
     @Override
     public Object invoke(final Object proxy, final Method method,
             final Object[] args) throws Throwable {
-        String name = method.getName();
-        if (name.equals("close")) {
-            boolean previouslyClosed = closed.getAndSet(true);
-            if (config.isEnabled(Check.RESULT_SET_DOUBLE_CLOSE) &&
-                    previouslyClosed) {
-                Utils.fail(config, exception, "ResultSet already closed");
+        if (idle == null && statementIdle == null) {
+            return invokeConcurrent(method, args);
+        }
+        if (idle != null) {
+            idle.enter();
+        }
+        if (statementIdle != null) {
+            statementIdle.enter();
+        }
+        try {
+            return invokeConcurrent(method, args);
+        } finally {
+            if (idle != null) {
+                idle.exit();
             }
-            if (!unreadColumns.isEmpty()) {
-                rs.close();
-                checkUnreadColumns();
+            if (statementIdle != null) {
+                statementIdle.exit();
             }
+        }
+    }
+
+    private Object invokeConcurrent(final Method method, final Object[] args)
+            throws Throwable {
+        if (concurrentUse == null || !concurrentUse.enter(method.getName())) {
+            return invokeChecked(method, args);
+        }
+        try {
+            return invokeChecked(method, args);
+        } finally {
+            concurrentUse.exit();
+        }
+    }
+
+    private Object invokeChecked(final Method method, final Object[] args)
+            throws Throwable {
+        String name = method.getName();
+        if (name.equals("close")) {
+            close();
             return null;
         }
         if (name.equals("next")) {
             return next();
+        } else if (name.equals("getMetaData")) {
+            checkRepeatedMetaData();
+            return getMetaData();
+        } else if (SCROLLS.contains(name)) {
+            setFlag(SCROLLED);
+        } else if (name.startsWith("update") || name.equals("insertRow") ||
+                name.equals("deleteRow") || name.equals("moveToInsertRow")) {
+            setFlag(UPDATED);
         } else if (GETTERS.contains(name)) {
             String columnLabel;
             if (args[0] instanceof Integer) {
                 columnLabel = columnIndexToLabel((Integer) args[0]);
+                setFlag(INDEX_GETTERS);
             } else {
-                columnLabel = (String) args[0];
+                columnLabel = ((String) args[0]).toLowerCase();
+                if (checkLabelGetters && !hasFlag(INDEX_GETTERS)) {
+                    labelGetterColumns.add(columnLabel);
+                }
+            }
+            if (unreadColumns != null) {
+                unreadColumns.remove(columnLabel);
             }
-            unreadColumns.remove(columnLabel);
+        }
+        boolean timeVirtual = VirtualThreadBlocking.shouldTime(config);
+        long startNanos = 0;
+        if (timeVirtual) {
+            startNanos = System.nanoTime();
         }
         try {
             Object returnVal = method.invoke(rs, args);
+            if (timeVirtual) {
+                VirtualThreadBlocking.record(config, "ResultSet." + name, sql,
+                        System.nanoTime() - startNanos);
+            }
             if (name.equals("getBlob")) {
                 returnVal = BlobProxy.newInstance((Blob) returnVal, config);
             }
@@ -128,36 +312,155 @@ final class ResultSetProxy implements InvocationHandler {
         }
     }
 
+    private void close() throws SQLException {
+        if (setFlag(CLOSED)) {
+            if (config.isEnabled(Check.RESULT_SET_DOUBLE_CLOSE)) {
+                Utils.fail(config, Check.RESULT_SET_DOUBLE_CLOSE, exception,
+                        "ResultSet already closed");
+            }
+            return;
+        }
+        if (idle != null) {
+            idle.close();
+        }
+        try {
+            if (config.isEnabled(Check.RESULT_SET_UNUSED_SCROLL_OR_UPDATE)) {
+                checkUnusedScrollOrUpdate();
+            }
+        } finally {
+            rs.close();
+        }
+        checkUnreadColumns();
+    }
+
     @Override
     protected void finalize() throws SQLException {
-        if (config.isEnabled(Check.RESULT_SET_MISSING_CLOSE) && !closed.get()) {
-            Utils.fail(config, exception, "ResultSet not closed");
+        if (config.isEnabled(Check.RESULT_SET_MISSING_CLOSE) &&
+                !hasFlag(CLOSED)) {
+            Utils.fail(config, Check.RESULT_SET_MISSING_CLOSE, exception,
+                    "ResultSet not closed");
         }
     }
 
     private boolean next() throws SQLException {
         checkUnreadColumns();
+        boolean timeVirtual = VirtualThreadBlocking.shouldTime(config);
+        WorkUnit unit = WorkUnit.current();
+        long startNanos = 0;
+        if (timeVirtual || unit != null) {
+            startNanos = System.nanoTime();
+        }
         boolean result = rs.next();
+        if (timeVirtual) {
+            VirtualThreadBlocking.record(config, "ResultSet.next", sql,
+                    System.nanoTime() - startNanos);
+        }
+        if (unit != null) {
+            long count = 0;
+            if (result) {
+                count = 1;
+            }
+            unit.rowsRead(count, System.nanoTime() - startNanos);
+        }
         if (result) {
-            if (config.isEnabled(Check.RESULT_SET_UNREAD_COLUMN)) {
-                ResultSetMetaData metaData = rs.getMetaData();
-                for (int i = 1; i <= metaData.getColumnCount(); ++i) {
-                    unreadColumns.add(metaData.getColumnLabel(i).toLowerCase());
+            if (checkLabelGetters) {
+                checkLabelGetters();
+            }
+            if (unreadColumns != null) {
+                String[] labels = getColumnLabels();
+                for (int i = 1; i < labels.length; ++i) {
+                    unreadColumns.add(labels[i]);
                 }
             }
         }
         return result;
     }
 
+    private ResultSetMetaData getMetaData() throws SQLException {
+        ResultSetMetaData result = metaData;
+        if (result == null) {
+            result = rs.getMetaData();
+            metaData = result;
+        }
+        return result;
+    }
+
+    private String[] getColumnLabels() throws SQLException {
+        String[] labels = columnLabels;
+        if (labels == null) {
+            ResultSetMetaData md = getMetaData();
+            labels = new String[md.getColumnCount() + 1];
+            for (int i = 1; i < labels.length; ++i) {
+                labels[i] = md.getColumnLabel(i).toLowerCase();
+            }
+            columnLabels = labels;
+        }
+        return labels;
+    }
+
+    /**
+     * Many drivers resolve a column label with a case-insensitive map
+     * lookup or a linear scan on every call, which adds up over large
+     * scans.  Report once per ResultSet after LABEL_GETTER_ROWS rows.
+     */
+    private void checkLabelGetters() throws SQLException {
+        long rows = increment(ROWS_READ_MASK, ROWS_READ_SHIFT) - 1;
+        if (rows != config.getThreshold(Threshold.LABEL_GETTER_ROWS)) {
+            return;
+        }
+        if (!hasFlag(INDEX_GETTERS) && !labelGetterColumns.isEmpty()) {
+            Utils.fail(config, Check.RESULT_SET_LABEL_GETTERS, sql,
+                    exception, "ResultSet read " + rows +
+                    " rows using only column labels " + labelGetterColumns +
+                    ", consider resolving indexes with findColumn");
+        }
+    }
+
+    private void checkRepeatedMetaData() throws SQLException {
+        if (config.isEnabled(Check.RESULT_SET_REPEATED_METADATA) &&
+                increment(METADATA_CALLS_MASK, METADATA_CALLS_SHIFT) ==
+                        config.getThreshold(Threshold.METADATA_CALLS) + 1) {
+            Utils.fail(config, Check.RESULT_SET_REPEATED_METADATA, sql,
+                    exception, "ResultSet.getMetaData called more than " +
+                    config.getThreshold(Threshold.METADATA_CALLS) +
+                    " times, consider hoisting it out of the loop");
+        }
+    }
+
+    /**
+     * Many drivers materialize scrollable ResultSets client-side and
+     * updatable ones need extra locking or metadata queries, which are
+     * wasted when the application only calls next.
+     */
+    private void checkUnusedScrollOrUpdate() throws SQLException {
+        if (!hasFlag(SCROLLED) && rs.getType() != ResultSet.TYPE_FORWARD_ONLY) {
+            Utils.fail(config, Check.RESULT_SET_UNUSED_SCROLL_OR_UPDATE, sql,
+                    exception, "ResultSet is scrollable but was only read " +
+                    "forward, consider TYPE_FORWARD_ONLY");
+        }
+        if (!hasFlag(UPDATED) &&
+                rs.getConcurrency() == ResultSet.CONCUR_UPDATABLE) {
+            Utils.fail(config, Check.RESULT_SET_UNUSED_SCROLL_OR_UPDATE, sql,
+                    exception, "ResultSet is updatable but was never " +
+                    "updated, consider CONCUR_READ_ONLY");
+        }
+    }
+
     private void checkUnreadColumns() throws SQLException {
-        if (!unreadColumns.isEmpty()) {
-            Utils.fail(config, exception, "ResultSet has unread column: " +
+        if (unreadColumns != null && !unreadColumns.isEmpty()) {
+            Utils.fail(config, Check.RESULT_SET_UNREAD_COLUMN, exception,
+                    "ResultSet has unread column: " +
                     unreadColumns.iterator().next());
         }
     }
 
     private String columnIndexToLabel(final int columnIndex)
             throws SQLException {
-        return rs.getMetaData().getColumnLabel(columnIndex).toLowerCase();
+        String[] labels = getColumnLabels();
+        if (columnIndex < 1 || columnIndex >= labels.length) {
+            // Let the driver report the invalid index.
+            return rs.getMetaData().getColumnLabel(columnIndex).toLowerCase();
+        }
+        return labels[columnIndex];
     }
 }
@@ -23,10 +23,18 @@ import java.lang.reflect.Proxy;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+import com.maginatics.jdbclint.Statistics.Metric;
 
 /**
  * StatementProxy proxies a Statement adding some checks.
@@ -34,27 +42,59 @@ import com.maginatics.jdbclint.Configuration.Check;
  *     * whether Statement was closed
  *     * whether Statement was closed more than once
  *     * whether Statement addBatch was called without executeBatch
+ *     * whether Statement was used by several threads at once
+ *     * whether Statement executed without a query timeout
+ *     * whether Statement batches are too small or too large
+ *     * whether Statement stayed open and idle for long
  */
 final class StatementProxy implements InvocationHandler {
     private final Statement stmt;
     private final Configuration config;
     private final String className;
-    private final Exception exception = new SQLException();
+    /** Creation site, or null if no enabled check or listener reports it. */
+    private final Exception exception;
 
-    private enum State {
-        OPENED,
-        IN_ADD_BATCH,
-        EXECUTED,
-        CLOSED;
-    }
-    private final AtomicReference<State> state =
-            new AtomicReference<State>(State.OPENED);
+    // Lifecycle state and flags share one int to keep proxies small.
+    private static final int OPENED = 0;
+    private static final int IN_ADD_BATCH = 1;
+    private static final int EXECUTED = 2;
+    private static final int CLOSED = 3;
+    private static final int STATE_MASK = 3;
+    private static final int HAS_QUERY_TIMEOUT = 1 << 2;
+    private static final int REPORTED_MISSING_QUERY_TIMEOUT = 1 << 3;
+    private static final AtomicIntegerFieldUpdater<StatementProxy> BITS =
+            AtomicIntegerFieldUpdater.newUpdater(StatementProxy.class,
+                    "bits");
+    private static final AtomicIntegerFieldUpdater<StatementProxy>
+            BATCH_SIZE = AtomicIntegerFieldUpdater.newUpdater(
+                    StatementProxy.class, "batchSize");
+    private volatile int bits = OPENED;
 
+    private final Check doubleCloseCheck;
+    private final Check missingCloseCheck;
+    private final Check missingExecuteCheck;
+    private final Check missingExecuteBatchCheck;
+    private final Check missingQueryTimeoutCheck;
+    private final Check badBatchSizeCheck;
     private final boolean checkDoubleClose;
     private final boolean checkMissingClose;
     private final boolean checkMissingExecute;
     private final boolean checkMissingExecuteBatch;
+    private final boolean checkMissingQueryTimeout;
+    private final boolean checkBadBatchSize;
+    private final boolean checkInsertThenSelect;
     private final ConnectionProxy connectionProxy;
+    private final ConcurrentUseDetector concurrentUse;
+    /** Call timestamps, or null if the idle open check is off. */
+    private final IdleCursorSweeper.Tracker idle;
+    /** SQL of PreparedStatement or most recent Statement execute. */
+    private volatile String sql;
+    /** Entries added since the last executeBatch or clearBatch. */
+    private volatile int batchSize;
+    /** Bound parameters, tracked only for ExecutionListeners, or null. */
+    private final List<Object> parameters;
+    private final List<String> batchSql;
+    private final List<List<Object>> batchParameters;
 
     static Statement newInstance(final ConnectionProxy connectionProxy,
             final Statement stmt, final Configuration config) {
@@ -65,11 +105,12 @@ final class StatementProxy implements InvocationHandler {
     }
 
     static PreparedStatement newInstance(final ConnectionProxy connectionProxy,
-            final PreparedStatement stmt, final Configuration config) {
+            final PreparedStatement stmt, final String sql,
+            final Configuration config) {
         return (PreparedStatement) Proxy.newProxyInstance(
                 stmt.getClass().getClassLoader(),
                 new Class<?>[] {PreparedStatement.class},
-                new StatementProxy(connectionProxy, stmt, config));
+                new StatementProxy(connectionProxy, stmt, sql, config));
     }
 
     StatementProxy(final ConnectionProxy connectionProxy, final Statement stmt,
@@ -79,89 +120,424 @@ final class StatementProxy implements InvocationHandler {
         this.config = Utils.checkNotNull(config);
         this.className = "Statement";
 
-        checkDoubleClose = config.isEnabled(Check.STATEMENT_DOUBLE_CLOSE);
-        checkMissingClose = config.isEnabled(Check.STATEMENT_MISSING_CLOSE);
-        checkMissingExecute = config.isEnabled(Check.STATEMENT_MISSING_EXECUTE);
-        checkMissingExecuteBatch = config.isEnabled(
-                Check.STATEMENT_MISSING_EXECUTE_BATCH);
+        doubleCloseCheck = Check.STATEMENT_DOUBLE_CLOSE;
+        missingCloseCheck = Check.STATEMENT_MISSING_CLOSE;
+        missingExecuteCheck = Check.STATEMENT_MISSING_EXECUTE;
+        missingExecuteBatchCheck = Check.STATEMENT_MISSING_EXECUTE_BATCH;
+        missingQueryTimeoutCheck = Check.STATEMENT_MISSING_QUERY_TIMEOUT;
+        checkDoubleClose = config.isEnabled(doubleCloseCheck);
+        checkMissingClose = config.isEnabled(missingCloseCheck);
+        checkMissingExecute = config.isEnabled(missingExecuteCheck);
+        checkMissingExecuteBatch = config.isEnabled(missingExecuteBatchCheck);
+        checkMissingQueryTimeout = config.isEnabled(missingQueryTimeoutCheck);
+        badBatchSizeCheck = Check.STATEMENT_BAD_BATCH_SIZE;
+        checkBadBatchSize = config.isEnabled(badBatchSizeCheck);
+        concurrentUse = ConcurrentUseDetector.newInstance(config,
+                Check.STATEMENT_CONCURRENT_USE, className);
+        checkInsertThenSelect = config.isEnabled(
+                Check.CONNECTION_INSERT_THEN_SELECT);
+        exception = newCreationSite(Check.STATEMENT_IDLE_OPEN);
+        idle = IdleCursorSweeper.getInstance().track(config,
+                Check.STATEMENT_IDLE_OPEN, className, null, exception);
+        parameters = newList(config.hasExecutionListeners());
+        batchSql = newList(config.hasExecutionListeners());
+        batchParameters = newList(config.hasExecutionListeners());
     }
 
     StatementProxy(final ConnectionProxy connectionProxy,
-            final PreparedStatement stmt, final Configuration config) {
+            final PreparedStatement stmt, final String sql,
+            final Configuration config) {
         this.connectionProxy = Utils.checkNotNull(connectionProxy);
         this.stmt = Utils.checkNotNull(stmt);
         this.config = Utils.checkNotNull(config);
         this.className = "PreparedStatement";
+        this.sql = sql;
+
+        doubleCloseCheck = Check.PREPARED_STATEMENT_DOUBLE_CLOSE;
+        missingCloseCheck = Check.PREPARED_STATEMENT_MISSING_CLOSE;
+        missingExecuteCheck = Check.PREPARED_STATEMENT_MISSING_EXECUTE;
+        missingExecuteBatchCheck =
+                Check.PREPARED_STATEMENT_MISSING_EXECUTE_BATCH;
+        missingQueryTimeoutCheck =
+                Check.PREPARED_STATEMENT_MISSING_QUERY_TIMEOUT;
+        checkDoubleClose = config.isEnabled(doubleCloseCheck);
+        checkMissingClose = config.isEnabled(missingCloseCheck);
+        checkMissingExecute = config.isEnabled(missingExecuteCheck);
+        checkMissingExecuteBatch = config.isEnabled(missingExecuteBatchCheck);
+        checkMissingQueryTimeout = config.isEnabled(missingQueryTimeoutCheck);
+        badBatchSizeCheck = Check.PREPARED_STATEMENT_BAD_BATCH_SIZE;
+        checkBadBatchSize = config.isEnabled(badBatchSizeCheck);
+        concurrentUse = ConcurrentUseDetector.newInstance(config,
+                Check.PREPARED_STATEMENT_CONCURRENT_USE, className);
+        checkInsertThenSelect = config.isEnabled(
+                Check.CONNECTION_INSERT_THEN_SELECT);
+        exception = newCreationSite(Check.PREPARED_STATEMENT_IDLE_OPEN);
+        idle = IdleCursorSweeper.getInstance().track(config,
+                Check.PREPARED_STATEMENT_IDLE_OPEN, className, sql, exception);
+        parameters = newList(config.hasExecutionListeners());
+        batchSql = newList(config.hasExecutionListeners());
+        batchParameters = newList(config.hasExecutionListeners());
+    }
 
-        checkDoubleClose = config.isEnabled(
-                Check.PREPARED_STATEMENT_DOUBLE_CLOSE);
-        checkMissingClose = config.isEnabled(
-                Check.PREPARED_STATEMENT_MISSING_CLOSE);
-        checkMissingExecute = config.isEnabled(
-                Check.PREPARED_STATEMENT_MISSING_EXECUTE);
-        checkMissingExecuteBatch = config.isEnabled(
-                Check.PREPARED_STATEMENT_MISSING_EXECUTE_BATCH);
+    /**
+     * Capture the creation site only if an enabled check or a listener can
+     * report it, since filling in a stack trace dominates proxy creation.
+     */
+    private Exception newCreationSite(final Check idleCheck) {
+        if (checkDoubleClose || checkMissingClose || checkMissingExecute ||
+                checkMissingExecuteBatch || checkMissingQueryTimeout ||
+                checkBadBatchSize || checkInsertThenSelect ||
+                config.isEnabled(idleCheck) ||
+                !config.getListeners().isEmpty()) {
+            return new SQLException();
+        }
+        return null;
+    }
+
+    private static <T> List<T> newList(final boolean enabled) {
+        if (!enabled) {
+            return null;
+        }
+        return new ArrayList<T>();
     }
 
     @Override
     public Object invoke(final Object proxy, final Method method,
             final Object[] args) throws Throwable {
+        if (idle == null) {
+            return invokeConcurrent(method, args);
+        }
+        idle.enter();
+        try {
+            return invokeConcurrent(method, args);
+        } finally {
+            idle.exit();
+        }
+    }
+
+    private Object invokeConcurrent(final Method method, final Object[] args)
+            throws Throwable {
+        String name = method.getName();
+        // Executing a statement also uses its connection.
+        ConcurrentUseDetector connectionUse = null;
+        if (name.startsWith("execute")) {
+            connectionUse = connectionProxy.getConcurrentUseDetector();
+        }
+        boolean enteredConnection = connectionUse != null &&
+                connectionUse.enter(name);
+        try {
+            if (concurrentUse == null || !concurrentUse.enter(name)) {
+                return invokeChecked(method, args);
+            }
+            try {
+                return invokeChecked(method, args);
+            } finally {
+                concurrentUse.exit();
+            }
+        } finally {
+            if (enteredConnection) {
+                connectionUse.exit();
+            }
+        }
+    }
+
+    private Object invokeChecked(final Method method, final Object[] args)
+            throws Throwable {
         String name = method.getName();
         if (name.equals("addBatch")) {
-            state.set(State.IN_ADD_BATCH);
+            setState(IN_ADD_BATCH);
+            BATCH_SIZE.incrementAndGet(this);
+        } else if (name.equals("clearBatch")) {
+            batchSize = 0;
         } else if (name.equals("executeBatch") ||
                 name.equals("executeLargeBatch")) {
-            state.set(State.EXECUTED);
+            setState(EXECUTED);
+            int size = BATCH_SIZE.getAndSet(this, 0);
+            if (checkBadBatchSize) {
+                batchExecuted(size);
+            }
         } else if (name.equals("execute") ||
                 name.equals("executeLargeUpdate") ||
                 name.equals("executeQuery") ||
                 name.equals("executeUpdate")) {
-            state.set(State.EXECUTED);
+            setState(EXECUTED);
         } else if (name.equals("close")) {
-            if (checkDoubleClose && state.get() == State.CLOSED) {
-                // Closing the same statement twice can cause issues with
-                // server-side statements.
-                Utils.fail(config, exception, className + " already closed");
-            } else if (checkMissingExecute &&
-                    state.compareAndSet(State.OPENED, State.CLOSED)) {
-                stmt.close();
-                Utils.fail(config, exception, className + " without execute");
-            } else if (checkMissingExecuteBatch &&
-                    state.compareAndSet(State.IN_ADD_BATCH, State.CLOSED)) {
-                stmt.close();
-                Utils.fail(config, exception,
+            int previous = setState(CLOSED);
+            if (previous == CLOSED) {
+                if (checkDoubleClose) {
+                    // Closing the same statement twice can cause issues with
+                    // server-side statements.
+                    Utils.fail(config, doubleCloseCheck, sql, exception,
+                            className + " already closed");
+                }
+                return null;
+            }
+            if (idle != null) {
+                idle.close();
+            }
+            stmt.close();
+            if (checkMissingExecute && previous == OPENED) {
+                Utils.fail(config, missingExecuteCheck, sql, exception,
+                        className + " without execute");
+            } else if (checkMissingExecuteBatch && previous == IN_ADD_BATCH) {
+                Utils.fail(config, missingExecuteBatchCheck, sql, exception,
                         className + " addBatch without executeBatch");
             }
-            state.set(State.CLOSED);
             return null;
+        } else if (name.equals("setQueryTimeout")) {
+            setFlag(HAS_QUERY_TIMEOUT, (Integer) args[0] > 0);
+        }
+
+        boolean executing = name.startsWith("execute");
+        boolean hasQueryTimeout = (bits & HAS_QUERY_TIMEOUT) != 0;
+        if (executing && checkMissingQueryTimeout && !hasQueryTimeout &&
+                !setFlag(REPORTED_MISSING_QUERY_TIMEOUT, true)) {
+            Utils.fail(config, missingQueryTimeoutCheck, sql, exception,
+                    className + " executed without setQueryTimeout");
         }
 
         // Be conservative and mark connection as non-readonly for all execute
         // calls except executeQuery
         if (name.startsWith("execute") && !name.equals("executeQuery")) {
-            connectionProxy.setReadOnly(false);
+            connectionProxy.updateExecuting();
         }
 
+        // Statement passes SQL to addBatch and execute methods
+        if (args != null && args.length > 0 && args[0] instanceof String &&
+                (name.startsWith("execute") || name.equals("addBatch"))) {
+            sql = (String) args[0];
+            if (idle != null) {
+                idle.setSql(sql);
+            }
+        }
+
+        boolean listening = name.startsWith("execute") &&
+                !config.getListeners().isEmpty();
+        List<String> executedSql = null;
+        List<List<Object>> executedParameters = null;
+        if (parameters != null) {
+            trackParameters(name, args);
+            if (executing) {
+                executedSql = new ArrayList<String>();
+                executedParameters = new ArrayList<List<Object>>();
+                snapshotExecution(name, args, executedSql,
+                        executedParameters);
+            }
+        }
+        boolean timeVirtual = VirtualThreadBlocking.shouldTime(config);
+        WorkUnit unit = null;
+        if (executing) {
+            unit = WorkUnit.current();
+        }
+        long startNanos = 0;
+        boolean correlate = executing && checkInsertThenSelect;
+        if (listening || timeVirtual || unit != null || correlate) {
+            startNanos = System.nanoTime();
+        }
+        // Enforce the default timeout for statements without their own.
+        long timeoutSeconds = 0;
+        TimeoutWheel.Timeout timeout = null;
+        if (executing && !hasQueryTimeout) {
+            timeoutSeconds = config.getThreshold(
+                    Threshold.QUERY_TIMEOUT_SECONDS);
+            if (timeoutSeconds > 0) {
+                timeout = TimeoutWheel.getInstance().schedule(stmt,
+                        timeoutSeconds, TimeUnit.SECONDS);
+            }
+        }
         Object returnVal;
         try {
             returnVal = method.invoke(stmt, args);
         } catch (InvocationTargetException ite) {
+            if (timeout != null && !timeout.complete()) {
+                throw new SQLTimeoutException(className + " cancelled by " +
+                        "JDBC lint after " + timeoutSeconds + " seconds",
+                        ite.getTargetException());
+            }
             throw ite.getTargetException();
+        } finally {
+            if (timeout != null) {
+                timeout.complete();
+            }
+        }
+        if (timeVirtual) {
+            VirtualThreadBlocking.record(config, className + "." + name, sql,
+                    System.nanoTime() - startNanos);
+        }
+        if (unit != null) {
+            unit.statementExecuted(System.nanoTime() - startNanos);
+        }
+        if (listening) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            for (Configuration.Listener listener : config.getListeners()) {
+                if (listener instanceof Configuration.ExecutionListener) {
+                    ((Configuration.ExecutionListener) listener)
+                            .statementExecuted(config,
+                                    connectionProxy.getId(), name,
+                                    executedSql, executedParameters,
+                                    elapsedNanos, exception);
+                } else {
+                    listener.statementExecuted(config, sql, elapsedNanos,
+                            exception);
+                }
+            }
+        }
+        if (correlate) {
+            connectionProxy.checkInsertThenSelect(name, sql, exception,
+                    System.nanoTime() - startNanos);
+        } else if (name.equals("getGeneratedKeys")) {
+            connectionProxy.generatedKeysRead();
+        }
+        if (name.startsWith("execute") &&
+                connectionProxy.isRecordingCommits()) {
+            connectionProxy.statementExecuted(updateCount(name, returnVal));
         }
         if (name.equals("executeQuery") || name.equals("getGeneratedKeys") ||
                 name.equals("getResultSet")) {
             if (returnVal != null) {
                 returnVal = ResultSetProxy.newInstance((ResultSet) returnVal,
-                        config);
+                        sql, config, idle);
             }
         }
         return returnVal;
     }
 
+    /** Record parameter and batch calls for ExecutionListeners. */
+    private void trackParameters(final String name, final Object[] args) {
+        if (name.startsWith("set") && args != null && args.length >= 2 &&
+                args[0] instanceof Integer) {
+            int index = (Integer) args[0] - 1;
+            if (index < 0) {
+                return;
+            }
+            while (parameters.size() <= index) {
+                parameters.add(null);
+            }
+            Object value;
+            if (name.equals("setNull")) {
+                value = new NullParameter((Integer) args[1]);
+            } else {
+                value = captureValue(args[1]);
+            }
+            parameters.set(index, value);
+        } else if (name.equals("clearParameters")) {
+            parameters.clear();
+        } else if (name.equals("addBatch")) {
+            if (args != null && args.length > 0) {
+                batchSql.add((String) args[0]);
+                batchParameters.add(Collections.<Object>emptyList());
+            } else {
+                batchSql.add(sql);
+                batchParameters.add(new ArrayList<Object>(parameters));
+            }
+        } else if (name.equals("clearBatch")) {
+            batchSql.clear();
+            batchParameters.clear();
+        }
+    }
+
+    /** Copy the entries an execute call is about to run. */
+    private void snapshotExecution(final String name, final Object[] args,
+            final List<String> executedSql,
+            final List<List<Object>> executedParameters) {
+        if (name.equals("executeBatch") || name.equals("executeLargeBatch")) {
+            executedSql.addAll(batchSql);
+            executedParameters.addAll(batchParameters);
+            batchSql.clear();
+            batchParameters.clear();
+        } else if (args != null && args.length > 0 &&
+                args[0] instanceof String) {
+            executedSql.add((String) args[0]);
+            executedParameters.add(Collections.<Object>emptyList());
+        } else {
+            executedSql.add(sql);
+            executedParameters.add(new ArrayList<Object>(parameters));
+        }
+    }
+
+    /** Return a copy of a replayable parameter value, or null. */
+    private static Object captureValue(final Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else if (value instanceof Date) {
+            return ((Date) value).clone();
+        } else if (value instanceof Boolean || value instanceof Number ||
+                value instanceof String) {
+            return value;
+        }
+        return null;
+    }
+
+    /** Set the lifecycle state, keeping flags, and return the previous. */
+    private int setState(final int state) {
+        while (true) {
+            int current = bits;
+            if (BITS.compareAndSet(this, current,
+                    (current & ~STATE_MASK) | state)) {
+                return current & STATE_MASK;
+            }
+        }
+    }
+
+    /** Set or clear flag and return whether it was previously set. */
+    private boolean setFlag(final int flag, final boolean value) {
+        while (true) {
+            int current = bits;
+            int update = current & ~flag;
+            if (value) {
+                update = current | flag;
+            }
+            if (BITS.compareAndSet(this, current, update)) {
+                return (current & flag) != 0;
+            }
+        }
+    }
+
+    /** Record the size of an executed batch and check its bounds. */
+    private void batchExecuted(final int size) throws SQLException {
+        String fingerprint = Utils.fingerprint(sql);
+        if (fingerprint == null) {
+            return;
+        }
+        Histogram histogram = config.getStatistics().getHistogram(
+                Metric.BATCH_SIZE_BY_SQL, fingerprint);
+        histogram.record(size);
+        if (size > config.getThreshold(Threshold.BATCH_SIZE_MAX)) {
+            Utils.fail(config, badBatchSizeCheck, sql, exception,
+                    className + " batch of " + size + " entries exceeds " +
+                    config.getThreshold(Threshold.BATCH_SIZE_MAX));
+        } else if (histogram.getCount() == config.getThreshold(
+                        Threshold.BATCH_SIZE_MIN_BATCHES) &&
+                histogram.getMean() < config.getThreshold(
+                        Threshold.BATCH_SIZE_MIN)) {
+            // Report once per SQL after enough batches to judge.
+            Utils.fail(config, badBatchSizeCheck, sql, exception,
+                    className + " batches average " +
+                    String.format("%.1f", histogram.getMean()) +
+                    " entries over " + histogram.getCount() + " batches");
+        }
+    }
+
     @Override
     protected void finalize() throws SQLException {
-        if (checkMissingClose && state.get() != State.CLOSED) {
-            Utils.fail(config, exception, className + " not closed");
+        if (checkMissingClose && (bits & STATE_MASK) != CLOSED) {
+            Utils.fail(config, missingCloseCheck, sql, exception,
+                    className + " not closed");
+        }
+    }
+
+    /** Return the updates an execute method ran, zero for queries. */
+    private static int updateCount(final String name, final Object returnVal) {
+        if (name.equals("executeQuery")) {
+            return 0;
+        } else if (name.equals("executeBatch")) {
+            return ((int[]) returnVal).length;
+        } else if (name.equals("executeLargeBatch")) {
+            return ((long[]) returnVal).length;
+        } else if (name.equals("execute") && (Boolean) returnVal) {
+            // execute returns true when the first result is a ResultSet.
+            return 0;
         }
+        return 1;
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Statistics aggregates Histograms across all proxies sharing a
+ * Configuration, keyed by a Metric and a string such as a SQL fingerprint
+ * or call site.
+ */
+public final class Statistics {
+    /** Aggregated metrics. */
+    public enum Metric {
+        /**
+         * 1 for each closed Connection which executed an update and 0 for
+         * each which did not, per opening call site.
+         */
+        CONNECTION_WRITES_BY_CALL_SITE,
+        /**
+         * Statements executed per commit, per opening call site, recorded
+         * while a commit check is enabled.  Each statement in auto-commit
+         * mode counts as its own commit.
+         */
+        STATEMENTS_PER_COMMIT_BY_CALL_SITE,
+        /**
+         * Nanoseconds of SELECTs which read back a row just inserted into
+         * the same table, per call site.
+         */
+        INSERT_THEN_SELECT_BY_CALL_SITE,
+        /**
+         * Entries per executeBatch call, per SQL, recorded while a
+         * BAD_BATCH_SIZE check is enabled.
+         */
+        BATCH_SIZE_BY_SQL,
+        /** Nanoseconds virtual threads blocked in JDBC calls, per SQL. */
+        VIRTUAL_THREAD_BLOCKING_BY_SQL,
+        /**
+         * Nanoseconds virtual threads blocked in JDBC calls, per category
+         * such as Statement.executeQuery.
+         */
+        VIRTUAL_THREAD_BLOCKING_BY_CATEGORY,
+        /**
+         * Nanoseconds of calls which blocked virtual threads longer than
+         * VIRTUAL_THREAD_BLOCKING_MILLIS, per category and call site.
+         */
+        VIRTUAL_THREAD_BLOCKING_BY_CALL_SITE;
+    }
+
+    private final Map<Metric, ConcurrentMap<String, Histogram>> metrics;
+
+    Statistics() {
+        Map<Metric, ConcurrentMap<String, Histogram>> map =
+                new EnumMap<Metric, ConcurrentMap<String, Histogram>>(
+                        Metric.class);
+        for (Metric metric : Metric.values()) {
+            map.put(metric, new ConcurrentHashMap<String, Histogram>());
+        }
+        metrics = Collections.unmodifiableMap(map);
+    }
+
+    /** Return the Histogram for metric and key, creating it if needed. */
+    Histogram getHistogram(final Metric metric, final String key) {
+        ConcurrentMap<String, Histogram> histograms = metrics.get(metric);
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram previous = histograms.putIfAbsent(key, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Return a snapshot of the Histograms recorded for metric.
+     *
+     * @param metric metric to return
+     * @return map from key to histogram
+     */
+    public Map<String, Histogram> getHistograms(final Metric metric) {
+        return Collections.unmodifiableMap(new HashMap<String, Histogram>(
+                metrics.get(Utils.checkNotNull(metric))));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Metric, ConcurrentMap<String, Histogram>> entry :
+                metrics.entrySet()) {
+            for (Map.Entry<String, Histogram> histogram :
+                    entry.getValue().entrySet()) {
+                sb.append(entry.getKey()).append(' ')
+                  .append(histogram.getKey()).append(": ")
+                  .append(histogram.getValue()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimeoutWheel cancels Statements whose execution exceeds a deadline.  A
+ * single daemon thread serves all statements using a hashed timer wheel:
+ * scheduling only enqueues, completing an execution only flips a flag, and
+ * the thread visits one bucket per tick.  Completed timeouts are dropped
+ * when the thread next visits their bucket.
+ */
+final class TimeoutWheel implements Runnable {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int BUCKETS = 512;
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int EXPIRED = 2;
+
+    /** Scheduled cancellation of one Statement execution. */
+    static final class Timeout {
+        private final Statement stmt;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+
+        Timeout(final Statement stmt, final long deadlineNanos) {
+            this.stmt = stmt;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Mark the execution complete.
+         *
+         * @return false if the statement was already cancelled
+         */
+        boolean complete() {
+            return state.compareAndSet(PENDING, DONE) ||
+                    state.get() == DONE;
+        }
+
+        boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(PENDING, EXPIRED)) {
+                try {
+                    stmt.cancel();
+                } catch (SQLException sqle) {
+                    // statement may have completed or been closed meanwhile
+                }
+            }
+        }
+    }
+
+    private static final TimeoutWheel INSTANCE = new TimeoutWheel();
+
+    private final Queue<Timeout> newTimeouts =
+            new ConcurrentLinkedQueue<Timeout>();
+    // Only accessed by the wheel thread.
+    private final List<List<Timeout>> buckets =
+            new ArrayList<List<Timeout>>(BUCKETS);
+    private final long startNanos = System.nanoTime();
+    private long tick;
+    private volatile Thread thread;
+
+    private TimeoutWheel() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets.add(new ArrayList<Timeout>());
+        }
+    }
+
+    static TimeoutWheel getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Schedule stmt to be cancelled after timeout.  Callers must call
+     * complete on the returned Timeout when the execution finishes.
+     */
+    Timeout schedule(final Statement stmt, final long timeout,
+            final TimeUnit unit) {
+        startThread();
+        Timeout handle = new Timeout(Utils.checkNotNull(stmt),
+                System.nanoTime() + unit.toNanos(timeout));
+        newTimeouts.add(handle);
+        return handle;
+    }
+
+    private void startThread() {
+        if (thread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (thread == null) {
+                Thread newThread = new Thread(this, "jdbclint-timeout");
+                newThread.setDaemon(true);
+                newThread.start();
+                thread = newThread;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long sleepNanos = startNanos + (tick + 1) * TICK_NANOS -
+                    System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            transferNewTimeouts();
+            expireTimeouts(buckets.get((int) (tick % BUCKETS)));
+            ++tick;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.state.get() != PENDING) {
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadlineNanos - startNanos) /
+                    TICK_NANOS);
+            timeout.remainingRounds = (ticks - tick) / BUCKETS;
+            buckets.get((int) (ticks % BUCKETS)).add(timeout);
+        }
+    }
+
+    private static void expireTimeouts(final List<Timeout> bucket) {
+        // compact in place instead of removing from the middle of the list
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); ++i) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.state.get() != PENDING) {
+                continue;
+            } else if (timeout.remainingRounds > 0) {
+                --timeout.remainingRounds;
+                bucket.set(kept++, timeout);
+            } else {
+                timeout.expire();
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
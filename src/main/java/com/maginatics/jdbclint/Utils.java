@@ -18,17 +18,127 @@ package com.maginatics.jdbclint;
 
 import java.sql.SQLException;
 
+import com.maginatics.jdbclint.Configuration.Check;
+
 /** Utility methods. */
 final class Utils {
     private Utils() {
         throw new AssertionError("intentionally unimplemented");
     }
 
-    static void fail(final Configuration config, final Exception exception,
-            final String message) throws SQLException {
+    static void fail(final Configuration config, final Check check,
+            final Exception exception, final String message)
+            throws SQLException {
+        fail(config, check, null, exception, message);
+    }
+
+    static void fail(final Configuration config, final Check check,
+            final String sql, final Exception exception, final String message)
+            throws SQLException {
         for (Configuration.Action action : config.getActions()) {
-            action.apply(message, exception);
+            if (action instanceof Configuration.CheckAction) {
+                ((Configuration.CheckAction) action).apply(check, sql,
+                        message, exception);
+            } else {
+                action.apply(message, exception);
+            }
+        }
+    }
+
+    /**
+     * Return the stack frame of throwable which called into JDBC lint,
+     * skipping reflection and java.sql frames, which is usually the
+     * application code which called into JDBC.
+     */
+    static String callSite(final Throwable throwable) {
+        StackTraceElement[] elements = throwable.getStackTrace();
+        int start = 0;
+        for (int i = 0; i < elements.length; ++i) {
+            String className = elements[i].getClassName();
+            if (isJdbcLintClass(className) || className.contains("$Proxy")) {
+                start = i + 1;
+            }
+        }
+        for (int i = start; i < elements.length; ++i) {
+            String className = elements[i].getClassName();
+            if (className.startsWith("java.lang.reflect.") ||
+                    className.startsWith("java.sql.") ||
+                    className.startsWith("sun.reflect.") ||
+                    className.startsWith("jdk.internal.")) {
+                continue;
+            }
+            return elements[i].toString();
+        }
+        if (elements.length == 0) {
+            return "unknown";
+        }
+        return elements[elements.length - 1].toString();
+    }
+
+    private static boolean isJdbcLintClass(final String className) {
+        // JDBC lint tests share its package but are application code
+        if (!className.startsWith("com.maginatics.jdbclint.")) {
+            return false;
+        }
+        int index = className.indexOf('$');
+        if (index != -1) {
+            return !className.substring(0, index).endsWith("Test");
         }
+        return !className.endsWith("Test");
+    }
+
+    /**
+     * Return a fingerprint of sql which replaces literals with question
+     * marks and collapses whitespace, so that statements differing only in
+     * their literal values share a fingerprint.
+     */
+    static String fingerprint(final String sql) {
+        if (sql == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(sql.length());
+        int length = sql.length();
+        for (int i = 0; i < length; ++i) {
+            char ch = sql.charAt(i);
+            if (ch == '\'') {
+                // skip string literal, including doubled quotes
+                ++i;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            ++i;
+                        } else {
+                            break;
+                        }
+                    }
+                    ++i;
+                }
+                sb.append('?');
+            } else if (Character.isDigit(ch) && (sb.length() == 0 ||
+                    !isIdentifierPart(sb.charAt(sb.length() - 1)))) {
+                while (i + 1 < length &&
+                        (Character.isDigit(sql.charAt(i + 1)) ||
+                                sql.charAt(i + 1) == '.')) {
+                    ++i;
+                }
+                sb.append('?');
+            } else if (Character.isWhitespace(ch)) {
+                while (i + 1 < length &&
+                        Character.isWhitespace(sql.charAt(i + 1))) {
+                    ++i;
+                }
+                if (sb.length() > 0 && i + 1 < length) {
+                    sb.append(' ');
+                }
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isIdentifierPart(final char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
     }
 
     static <T> T checkNotNull(final T obj) {
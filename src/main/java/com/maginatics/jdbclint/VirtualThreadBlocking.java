@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+import com.maginatics.jdbclint.Statistics.Metric;
+
+/**
+ * VirtualThreadBlocking measures how long virtual threads block in JDBC
+ * calls.  Drivers which block inside synchronized regions pin the carrier
+ * thread for the whole call, so long calls from virtual threads suggest
+ * pinning.  Slow calls are aggregated per call site, which is reported
+ * once it blocks VIRTUAL_THREAD_BLOCKING_COUNT times.
+ */
+final class VirtualThreadBlocking {
+    private VirtualThreadBlocking() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /** Return whether the current call should be timed. */
+    static boolean shouldTime(final Configuration config) {
+        return config.isEnabled(Check.VIRTUAL_THREAD_BLOCKING) &&
+                VirtualThreads.isVirtual(Thread.currentThread());
+    }
+
+    /**
+     * Record a call made from a virtual thread.
+     *
+     * @param config configuration
+     * @param category class and method name, for example
+     *        Statement.executeQuery
+     * @param sql SQL involved, or null if unknown
+     * @param elapsedNanos time spent in the driver
+     */
+    static void record(final Configuration config, final String category,
+            final String sql, final long elapsedNanos) throws SQLException {
+        Statistics statistics = config.getStatistics();
+        statistics.getHistogram(Metric.VIRTUAL_THREAD_BLOCKING_BY_CATEGORY,
+                category).record(elapsedNanos);
+        String fingerprint = Utils.fingerprint(sql);
+        if (fingerprint != null) {
+            statistics.getHistogram(Metric.VIRTUAL_THREAD_BLOCKING_BY_SQL,
+                    fingerprint).record(elapsedNanos);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (elapsedMillis < config.getThreshold(
+                Threshold.VIRTUAL_THREAD_BLOCKING_MILLIS)) {
+            return;
+        }
+        // Only slow calls pay for a stack trace.
+        SQLException exception = new SQLException();
+        String site = category + " at " + Utils.callSite(exception);
+        Histogram histogram = statistics.getHistogram(
+                Metric.VIRTUAL_THREAD_BLOCKING_BY_CALL_SITE, site);
+        histogram.record(elapsedNanos);
+        if (histogram.getCount() == config.getThreshold(
+                Threshold.VIRTUAL_THREAD_BLOCKING_COUNT)) {
+            Utils.fail(config, Check.VIRTUAL_THREAD_BLOCKING, sql, exception,
+                    site + " blocked virtual threads " +
+                    histogram.getCount() + " times for up to " +
+                    TimeUnit.NANOSECONDS.toMillis(histogram.getMax()) +
+                    " ms, which may pin their carrier threads");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import com.maginatics.jdbclint.Configuration.Check;
+import com.maginatics.jdbclint.Configuration.Threshold;
+
+/**
+ * WorkUnit accumulates the JDBC work done on behalf of one unit of work,
+ * for example one HTTP request: connections acquired, statements executed,
+ * rows read, Blob bytes read and nanoseconds spent in the driver.  Proxies
+ * charge the unit attached to the calling thread.  Ending a unit which
+ * exceeds its budgets fails WORK_UNIT_OVER_BUDGET.
+ *
+ * <pre>
+ * WorkUnit unit = WorkUnit.begin("GET /orders", config);
+ * try {
+ *     ...
+ * } finally {
+ *     unit.end();
+ * }
+ * </pre>
+ *
+ * Counters are plain fields so that charging does not allocate or contend.
+ * A unit may move between threads via attach and detach but should be
+ * attached to only one thread at a time.
+ */
+public final class WorkUnit {
+    private static final ThreadLocal<WorkUnit> CURRENT =
+            new ThreadLocal<WorkUnit>();
+
+    private final String name;
+    private final Configuration config;
+    private final Exception exception = new SQLException();
+    private WorkUnit previous;
+
+    private long connections;
+    private long statements;
+    private long rows;
+    private long blobBytes;
+    private long driverNanos;
+
+    /**
+     * Create a WorkUnit which is not attached to any thread.
+     *
+     * @param name name used in reports, for example the request URI
+     * @param config configuration providing the budgets
+     */
+    public WorkUnit(final String name, final Configuration config) {
+        this.name = Utils.checkNotNull(name);
+        this.config = Utils.checkNotNull(config);
+    }
+
+    /**
+     * Create a WorkUnit and attach it to the current thread.
+     *
+     * @param name name used in reports, for example the request URI
+     * @param config configuration providing the budgets
+     * @return attached unit
+     */
+    public static WorkUnit begin(final String name,
+            final Configuration config) {
+        WorkUnit unit = new WorkUnit(name, config);
+        unit.attach();
+        return unit;
+    }
+
+    /** Return the unit attached to the current thread, or null. */
+    public static WorkUnit current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attach this unit to the current thread, remembering the unit it
+     * replaces so that detach can restore it.
+     */
+    public void attach() {
+        previous = CURRENT.get();
+        CURRENT.set(this);
+    }
+
+    /** Detach this unit from the current thread. */
+    public void detach() {
+        if (CURRENT.get() != this) {
+            return;
+        }
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+        previous = null;
+    }
+
+    /**
+     * Detach this unit and check its budgets.
+     *
+     * @throws SQLException if configured to throw on failed checks
+     */
+    public void end() throws SQLException {
+        detach();
+        if (!config.isEnabled(Check.WORK_UNIT_OVER_BUDGET)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendOverBudget(sb, "connections", connections,
+                Threshold.WORK_UNIT_MAX_CONNECTIONS);
+        appendOverBudget(sb, "statements", statements,
+                Threshold.WORK_UNIT_MAX_STATEMENTS);
+        appendOverBudget(sb, "rows", rows, Threshold.WORK_UNIT_MAX_ROWS);
+        appendOverBudget(sb, "Blob bytes", blobBytes,
+                Threshold.WORK_UNIT_MAX_BLOB_BYTES);
+        appendOverBudget(sb, "driver ms",
+                TimeUnit.NANOSECONDS.toMillis(driverNanos),
+                Threshold.WORK_UNIT_MAX_DRIVER_MILLIS);
+        if (sb.length() > 0) {
+            Utils.fail(config, Check.WORK_UNIT_OVER_BUDGET, exception,
+                    "Work unit " + name + " exceeded budget:" + sb);
+        }
+    }
+
+    private void appendOverBudget(final StringBuilder sb, final String what,
+            final long value, final Threshold threshold) {
+        long limit = config.getThreshold(threshold);
+        if (value > limit) {
+            sb.append(' ').append(what).append(' ').append(value)
+              .append(" > ").append(limit);
+        }
+    }
+
+    /** Charge the unit attached to the current thread, if any. */
+    static void connectionAcquired(final long elapsedNanos) {
+        WorkUnit unit = CURRENT.get();
+        if (unit != null) {
+            ++unit.connections;
+            unit.driverNanos += elapsedNanos;
+        }
+    }
+
+    void statementExecuted(final long elapsedNanos) {
+        ++statements;
+        driverNanos += elapsedNanos;
+    }
+
+    void rowsRead(final long count, final long elapsedNanos) {
+        rows += count;
+        driverNanos += elapsedNanos;
+    }
+
+    void blobRead(final long bytes) {
+        blobBytes += bytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getBlobBytes() {
+        return blobBytes;
+    }
+
+    public long getDriverNanos() {
+        return driverNanos;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": connections=" + connections +
+                " statements=" + statements + " rows=" + rows +
+                " blobBytes=" + blobBytes + " driverMillis=" +
+                TimeUnit.NANOSECONDS.toMillis(driverNanos);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WorkloadCapture is a Listener which records connection and transaction
+ * boundaries, SQL, bound parameters and timing of every execution to a
+ * compact file which WorkloadReplay re-drives against another DataSource.
+ * Parameters which cannot be replayed, such as streams, are recorded as
+ * null.
+ *
+ * File format, encoded as described in BinaryFormat with times in
+ * microseconds since the capture started:
+ *
+ *     header:      int magic, byte version
+ *     string:      TAG_STRING id length utf8-bytes
+ *     open:        TAG_OPEN time connection-id
+ *     close:       TAG_CLOSE time connection-id
+ *     execute:     TAG_EXECUTE start-time connection-id method-id
+ *                  elapsed-micros entry-count
+ *                  (sql-id parameter-count parameter...)...
+ *     transaction: TAG_TRANSACTION time connection-id method-id
+ *                  byte auto-commit
+ *     parameter:   type followed by a type-specific value
+ *
+ * Once MAX_INTERNED_STRINGS strings are interned, ids restart from 1 and
+ * later string records redefine them, bounding memory on both sides.
+ */
+public final class WorkloadCapture implements
+        Configuration.ExecutionListener, Closeable {
+    static final int MAGIC = 0x4A444350;  // "JDCP"
+    static final int VERSION = 2;
+    static final int TAG_STRING = BinaryFormat.TAG_STRING;
+    static final int TAG_OPEN = 2;
+    static final int TAG_CLOSE = 3;
+    static final int TAG_EXECUTE = 4;
+    static final int TAG_TRANSACTION = 5;
+    static final int TYPE_NULL = 0;
+    static final int TYPE_TRUE = 1;
+    static final int TYPE_FALSE = 2;
+    static final int TYPE_LONG = 3;
+    static final int TYPE_DOUBLE = 4;
+    static final int TYPE_DECIMAL = 5;
+    static final int TYPE_STRING = 6;
+    static final int TYPE_BYTES = 7;
+    static final int TYPE_TIMESTAMP = 8;
+    static final int TYPE_DATE = 9;
+    static final int TYPE_TIME = 10;
+    static final int TYPE_SQL_NULL = 11;
+    private static final int MAX_INTERNED_STRINGS = 1 << 16;
+
+    private final File file;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Integer> strings =
+            new HashMap<String, Integer>();
+    private DataOutputStream out;
+
+    /**
+     * Create a WorkloadCapture.
+     *
+     * @param file capture file, overwritten if it exists
+     */
+    public WorkloadCapture(final File file) throws IOException {
+        this.file = Utils.checkNotNull(file);
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    WorkloadCapture.this.close();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void connectionOpened(final Configuration config,
+            final long connectionId) {
+        writeBoundary(TAG_OPEN, connectionId);
+    }
+
+    @Override
+    public synchronized void connectionClosed(final Configuration config,
+            final long connectionId) {
+        writeBoundary(TAG_CLOSE, connectionId);
+    }
+
+    private void writeBoundary(final int tag, final long connectionId) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(tag);
+            BinaryFormat.writeVarLong(out, micros(System.nanoTime()));
+            BinaryFormat.writeVarLong(out, connectionId);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public synchronized void transactionChanged(final Configuration config,
+            final long connectionId, final String method,
+            final boolean autoCommit) {
+        if (out == null) {
+            return;
+        }
+        try {
+            reserveStrings(1);
+            int methodId = intern(method);
+            out.writeByte(TAG_TRANSACTION);
+            BinaryFormat.writeVarLong(out, micros(System.nanoTime()));
+            BinaryFormat.writeVarLong(out, connectionId);
+            BinaryFormat.writeVarLong(out, methodId);
+            out.writeBoolean(autoCommit);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void statementExecuted(final Configuration config,
+            final String sql, final long elapsedNanos,
+            final Exception creationSite) {
+        // Proxies call the ExecutionListener variant instead.
+    }
+
+    @Override
+    public synchronized void statementExecuted(final Configuration config,
+            final long connectionId, final String method,
+            final List<String> sql, final List<List<Object>> parameters,
+            final long elapsedNanos, final Exception creationSite) {
+        if (out == null) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            reserveStrings(1 + sql.size());
+            int methodId = intern(method);
+            int[] sqlIds = new int[sql.size()];
+            for (int i = 0; i < sqlIds.length; ++i) {
+                sqlIds[i] = intern(sql.get(i));
+            }
+            out.writeByte(TAG_EXECUTE);
+            BinaryFormat.writeVarLong(out, micros(now - elapsedNanos));
+            BinaryFormat.writeVarLong(out, connectionId);
+            BinaryFormat.writeVarLong(out, methodId);
+            BinaryFormat.writeVarLong(out, TimeUnit.NANOSECONDS.toMicros(
+                    Math.max(0, elapsedNanos)));
+            BinaryFormat.writeVarLong(out, sqlIds.length);
+            for (int i = 0; i < sqlIds.length; ++i) {
+                BinaryFormat.writeVarLong(out, sqlIds[i]);
+                List<Object> values = parameters.get(i);
+                BinaryFormat.writeVarLong(out, values.size());
+                for (Object value : values) {
+                    writeParameter(value);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /** Write buffered records to the file. */
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } finally {
+            out = null;
+        }
+    }
+
+    private long micros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos - startNanos));
+    }
+
+    /**
+     * Restart the string table if count more strings could exceed its
+     * bound, before a record interns them so that its ids stay defined.
+     */
+    private void reserveStrings(final int count) {
+        if (strings.size() + count > MAX_INTERNED_STRINGS) {
+            strings.clear();
+        }
+    }
+
+    private int intern(final String string) throws IOException {
+        if (string == null) {
+            return 0;
+        }
+        Integer id = strings.get(string);
+        if (id != null) {
+            return id;
+        }
+        id = strings.size() + 1;
+        strings.put(string, id);
+        out.writeByte(TAG_STRING);
+        BinaryFormat.writeVarLong(out, id);
+        BinaryFormat.writeUtf8(out, string);
+        return id;
+    }
+
+    private void writeParameter(final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof NullParameter) {
+            out.writeByte(TYPE_SQL_NULL);
+            BinaryFormat.writeSignedVarLong(out,
+                    ((NullParameter) value).getSqlType());
+        } else if (value instanceof Boolean) {
+            if ((Boolean) value) {
+                out.writeByte(TYPE_TRUE);
+            } else {
+                out.writeByte(TYPE_FALSE);
+            }
+        } else if (value instanceof Byte || value instanceof Short ||
+                value instanceof Integer || value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            BinaryFormat.writeSignedVarLong(out, ((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            out.writeByte(TYPE_DECIMAL);
+            BinaryFormat.writeUtf8(out, value.toString());
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            BinaryFormat.writeUtf8(out, (String) value);
+        } else if (value instanceof byte[]) {
+            out.writeByte(TYPE_BYTES);
+            BinaryFormat.writeBytes(out, (byte[]) value);
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(TYPE_DATE);
+            BinaryFormat.writeSignedVarLong(out, ((Date) value).getTime());
+        } else if (value instanceof Time) {
+            out.writeByte(TYPE_TIME);
+            BinaryFormat.writeSignedVarLong(out, ((Date) value).getTime());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_TIMESTAMP);
+            BinaryFormat.writeSignedVarLong(out, ((Date) value).getTime());
+            int nanos = 0;
+            if (value instanceof Timestamp) {
+                nanos = ((Timestamp) value).getNanos();
+            }
+            BinaryFormat.writeVarLong(out, nanos);
+        } else {
+            out.writeByte(TYPE_NULL);
+        }
+    }
+
+    /** Read a parameter written by writeParameter. */
+    static Object readParameter(final DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_SQL_NULL:
+            return new NullParameter((int) BinaryFormat.readSignedVarLong(in));
+        case TYPE_TRUE:
+            return Boolean.TRUE;
+        case TYPE_FALSE:
+            return Boolean.FALSE;
+        case TYPE_LONG:
+            return BinaryFormat.readSignedVarLong(in);
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_DECIMAL:
+            return new BigDecimal(BinaryFormat.readUtf8(in));
+        case TYPE_STRING:
+            return BinaryFormat.readUtf8(in);
+        case TYPE_BYTES:
+            return BinaryFormat.readBytes(in);
+        case TYPE_DATE:
+            return new java.sql.Date(BinaryFormat.readSignedVarLong(in));
+        case TYPE_TIME:
+            return new Time(BinaryFormat.readSignedVarLong(in));
+        case TYPE_TIMESTAMP:
+            Timestamp timestamp = new Timestamp(
+                    BinaryFormat.readSignedVarLong(in));
+            timestamp.setNanos((int) BinaryFormat.readVarLong(in));
+            return timestamp;
+        default:
+            throw new IOException("unknown parameter type " + type);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * WorkloadReplay re-drives a workload recorded by WorkloadCapture against
+ * a DataSource and reports throughput and latency percentiles.  Each
+ * captured connection replays on one connection with its executions and
+ * transaction boundaries in order; concurrency bounds how many run at
+ * once.  A positive speed-up preserves the captured timing compressed by
+ * that factor, while zero replays as fast as possible.  Nulls captured
+ * without their SQL type replay as Types.NULL.  Usage:
+ *
+ *     java -cp jdbclint.jar:DRIVER.jar \
+ *             com.maginatics.jdbclint.WorkloadReplay \
+ *             [-c CONCURRENCY] [-s SPEEDUP] FILE URL [USER PASSWORD]
+ */
+public final class WorkloadReplay {
+    private final List<Session> sessions;
+
+    /** Captured connection and its executions in order. */
+    private static final class Session {
+        private final long openMicros;
+        private final List<Execution> executions = new ArrayList<Execution>();
+
+        Session(final long openMicros) {
+            this.openMicros = openMicros;
+        }
+    }
+
+    /** Captured execute call or transaction boundary. */
+    private static final class Execution {
+        private final long startMicros;
+        private final String method;
+        private final List<String> sql;
+        private final List<List<Object>> parameters;
+        /** Auto-commit mode after a transaction boundary. */
+        private final boolean autoCommit;
+
+        Execution(final long startMicros, final String method,
+                final List<String> sql,
+                final List<List<Object>> parameters,
+                final boolean autoCommit) {
+            this.startMicros = startMicros;
+            this.method = method;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.autoCommit = autoCommit;
+        }
+
+        boolean isBatch() {
+            return method.equals("executeBatch") ||
+                    method.equals("executeLargeBatch");
+        }
+
+        /** Return whether this is commit, rollback or setAutoCommit. */
+        boolean isTransactionBoundary() {
+            return method.equals("commit") || method.equals("rollback") ||
+                    method.equals("setAutoCommit");
+        }
+    }
+
+    /** Source of connections, so that main need not implement DataSource. */
+    private interface ConnectionSource {
+        Connection getConnection() throws SQLException;
+    }
+
+    /** Outcome of a replay. */
+    public static final class Result {
+        private final long executions;
+        private final long transactions;
+        private final long errors;
+        private final long elapsedNanos;
+        private final Histogram latencyNanos;
+
+        Result(final long executions, final long transactions,
+                final long errors, final long elapsedNanos,
+                final Histogram latencyNanos) {
+            this.executions = executions;
+            this.transactions = transactions;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencyNanos = latencyNanos;
+        }
+
+        /** Return successful statement executions. */
+        public long getExecutions() {
+            return executions;
+        }
+
+        /** Return successful commit, rollback and setAutoCommit calls. */
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** Return successful executions per second. */
+        public double getThroughput() {
+            if (elapsedNanos == 0) {
+                return 0;
+            }
+            return executions * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Return the distribution of statement execution latency in
+         * nanoseconds, excluding transaction boundaries.
+         */
+        public Histogram getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("executions=%d transactions=%d errors=%d " +
+                    "elapsed=%.3f s throughput=%.1f/s latency p50=%.3f ms " +
+                    "p90=%.3f ms p99=%.3f ms max=%.3f ms", executions,
+                    transactions, errors,
+                    elapsedNanos / 1e9, getThroughput(),
+                    latencyNanos.getPercentile(50) / 1e6,
+                    latencyNanos.getPercentile(90) / 1e6,
+                    latencyNanos.getPercentile(99) / 1e6,
+                    latencyNanos.getMax() / 1e6);
+        }
+    }
+
+    private WorkloadReplay(final List<Session> sessions) {
+        this.sessions = sessions;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int concurrency = 1;
+        double speedUp = 0;
+        List<String> positional = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-c") && i + 1 < args.length) {
+                concurrency = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-s") && i + 1 < args.length) {
+                speedUp = Double.parseDouble(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() != 2 && positional.size() != 4) {
+            System.err.println("Usage: WorkloadReplay [-c CONCURRENCY] " +
+                    "[-s SPEEDUP] FILE URL [USER PASSWORD]");
+            System.exit(1);
+        }
+        final String url = positional.get(1);
+        String user = null;
+        String password = null;
+        if (positional.size() == 4) {
+            user = positional.get(2);
+            password = positional.get(3);
+        }
+        final String finalUser = user;
+        final String finalPassword = password;
+        WorkloadReplay replay = read(new File(positional.get(0)));
+        Result result = replay.replay(new ConnectionSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                if (finalUser == null) {
+                    return DriverManager.getConnection(url);
+                }
+                return DriverManager.getConnection(url, finalUser,
+                        finalPassword);
+            }
+        }, concurrency, speedUp);
+        System.out.println(result);
+    }
+
+    /**
+     * Read a capture file, stopping at a truncated record.
+     *
+     * @param file file written by WorkloadCapture
+     * @return replay of the captured workload
+     */
+    public static WorkloadReplay read(final File file) throws IOException {
+        List<Session> sessions = new ArrayList<Session>();
+        Map<Long, Session> open = new HashMap<Long, Session>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != WorkloadCapture.MAGIC) {
+                throw new IOException("not a JDBC lint capture: " + file);
+            }
+            // Version 1 lacks transaction records and typed nulls.
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > WorkloadCapture.VERSION) {
+                throw new IOException("unsupported version " + version +
+                        ": " + file);
+            }
+            Map<Long, String> strings = new HashMap<Long, String>();
+            while (true) {
+                int tag = in.read();
+                if (tag == -1) {
+                    break;
+                } else if (tag == WorkloadCapture.TAG_STRING) {
+                    BinaryFormat.readStringRecord(in, strings);
+                } else if (tag == WorkloadCapture.TAG_OPEN) {
+                    long micros = BinaryFormat.readVarLong(in);
+                    Session session = new Session(micros);
+                    sessions.add(session);
+                    open.put(BinaryFormat.readVarLong(in), session);
+                } else if (tag == WorkloadCapture.TAG_CLOSE) {
+                    BinaryFormat.readVarLong(in);  // time
+                    open.remove(BinaryFormat.readVarLong(in));
+                } else if (tag == WorkloadCapture.TAG_EXECUTE) {
+                    readExecution(in, strings, sessions, open);
+                } else if (tag == WorkloadCapture.TAG_TRANSACTION) {
+                    long micros = BinaryFormat.readVarLong(in);
+                    long connectionId = BinaryFormat.readVarLong(in);
+                    String method = BinaryFormat.readStringId(in, strings);
+                    boolean autoCommit = in.readBoolean();
+                    if (method == null) {
+                        throw new IOException("transaction without method");
+                    }
+                    session(sessions, open, connectionId, micros)
+                            .executions.add(new Execution(micros, method,
+                                    Collections.<String>emptyList(),
+                                    Collections.<List<Object>>emptyList(),
+                                    autoCommit));
+                } else {
+                    throw new IOException("unknown tag " + tag + ": " + file);
+                }
+            }
+        } catch (EOFException eofe) {
+            // capture was truncated while writing, use what we have
+        } finally {
+            in.close();
+        }
+        return new WorkloadReplay(sessions);
+    }
+
+    private static void readExecution(final DataInputStream in,
+            final Map<Long, String> strings, final List<Session> sessions,
+            final Map<Long, Session> open) throws IOException {
+        long startMicros = BinaryFormat.readVarLong(in);
+        long connectionId = BinaryFormat.readVarLong(in);
+        String method = BinaryFormat.readStringId(in, strings);
+        if (method == null) {
+            throw new IOException("execution without method");
+        }
+        BinaryFormat.readVarLong(in);  // captured elapsed time
+        int entries = (int) BinaryFormat.readVarLong(in);
+        List<String> sql = new ArrayList<String>(entries);
+        List<List<Object>> parameters = new ArrayList<List<Object>>(entries);
+        for (int i = 0; i < entries; ++i) {
+            sql.add(BinaryFormat.readStringId(in, strings));
+            int count = (int) BinaryFormat.readVarLong(in);
+            List<Object> values = new ArrayList<Object>(count);
+            for (int j = 0; j < count; ++j) {
+                values.add(WorkloadCapture.readParameter(in));
+            }
+            parameters.add(values);
+        }
+        session(sessions, open, connectionId, startMicros).executions.add(
+                new Execution(startMicros, method, sql, parameters,
+                        /*autoCommit=*/ false));
+    }
+
+    /** Return the open session for connectionId, creating it if needed. */
+    private static Session session(final List<Session> sessions,
+            final Map<Long, Session> open, final long connectionId,
+            final long micros) {
+        Session session = open.get(connectionId);
+        if (session == null) {
+            // Connection opened before the capture started.
+            session = new Session(micros);
+            sessions.add(session);
+            open.put(connectionId, session);
+        }
+        return session;
+    }
+
+    /** Return the number of captured connections. */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Replay the workload against dataSource.
+     *
+     * @param dataSource target DataSource
+     * @param concurrency maximum connections replaying at once
+     * @param speedUp factor to compress captured timing by, or zero to
+     *        replay as fast as possible
+     * @return throughput and latency of the replay
+     */
+    public Result replay(final DataSource dataSource, final int concurrency,
+            final double speedUp) throws InterruptedException {
+        Utils.checkNotNull(dataSource);
+        return replay(new ConnectionSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                return dataSource.getConnection();
+            }
+        }, concurrency, speedUp);
+    }
+
+    private Result replay(final ConnectionSource source,
+            final int concurrency, final double speedUp)
+            throws InterruptedException {
+        if (concurrency <= 0 || speedUp < 0) {
+            throw new IllegalArgumentException("invalid concurrency or " +
+                    "speed-up: " + concurrency + " " + speedUp);
+        }
+        final Histogram latencyNanos = new Histogram();
+        final AtomicLong executions = new AtomicLong();
+        final AtomicLong transactions = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        long firstMicros = Long.MAX_VALUE;
+        for (Session session : sessions) {
+            firstMicros = Math.min(firstMicros, session.openMicros);
+        }
+        final long baseMicros = firstMicros;
+        final long startNanos = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Session> ordered = new ArrayList<Session>(sessions);
+        Collections.sort(ordered, new Comparator<Session>() {
+            @Override
+            public int compare(final Session a, final Session b) {
+                return Long.valueOf(a.openMicros).compareTo(b.openMicros);
+            }
+        });
+        for (final Session session : ordered) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replaySession(source, session, speedUp, baseMicros,
+                            startNanos, latencyNanos, executions,
+                            transactions, errors);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return new Result(executions.get(), transactions.get(), errors.get(),
+                System.nanoTime() - startNanos, latencyNanos);
+    }
+
+    private static void replaySession(final ConnectionSource source,
+            final Session session, final double speedUp,
+            final long baseMicros, final long startNanos,
+            final Histogram latencyNanos, final AtomicLong executions,
+            final AtomicLong transactions, final AtomicLong errors) {
+        Connection conn = null;
+        try {
+            awaitOffset(session.openMicros, speedUp, baseMicros, startNanos);
+            conn = source.getConnection();
+            for (Execution execution : session.executions) {
+                awaitOffset(execution.startMicros, speedUp, baseMicros,
+                        startNanos);
+                long before = System.nanoTime();
+                try {
+                    execute(conn, execution);
+                    if (execution.isTransactionBoundary()) {
+                        transactions.incrementAndGet();
+                    } else {
+                        latencyNanos.record(System.nanoTime() - before);
+                        executions.incrementAndGet();
+                    }
+                } catch (SQLException sqle) {
+                    errors.incrementAndGet();
+                } catch (RuntimeException re) {
+                    // a driver failure must not abandon the session
+                    errors.incrementAndGet();
+                }
+            }
+        } catch (SQLException sqle) {
+            errors.incrementAndGet();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException sqle) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Sleep until the scaled capture offset, unless replaying flat out. */
+    private static void awaitOffset(final long micros, final double speedUp,
+            final long baseMicros, final long startNanos)
+            throws InterruptedException {
+        if (speedUp == 0) {
+            return;
+        }
+        long targetNanos = startNanos +
+                (long) ((micros - baseMicros) * 1000 / speedUp);
+        long remaining = targetNanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static void execute(final Connection conn,
+            final Execution execution) throws SQLException {
+        if (execution.method.equals("commit")) {
+            conn.commit();
+            return;
+        } else if (execution.method.equals("rollback")) {
+            conn.rollback();
+            return;
+        } else if (execution.method.equals("setAutoCommit")) {
+            conn.setAutoCommit(execution.autoCommit);
+            return;
+        } else if (execution.sql.contains(null)) {
+            throw new SQLException(execution.method + " SQL not captured");
+        }
+        if (execution.isBatch()) {
+            executeBatch(conn, execution);
+            return;
+        }
+        PreparedStatement stmt = conn.prepareStatement(execution.sql.get(0));
+        try {
+            setParameters(stmt, execution.parameters.get(0));
+            if (stmt.execute()) {
+                drain(stmt.getResultSet());
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static void executeBatch(final Connection conn,
+            final Execution execution) throws SQLException {
+        if (execution.sql.isEmpty()) {
+            return;
+        }
+        boolean prepared = true;
+        for (String sql : execution.sql) {
+            if (!sql.equals(execution.sql.get(0))) {
+                prepared = false;
+                break;
+            }
+        }
+        if (prepared) {
+            PreparedStatement stmt = conn.prepareStatement(
+                    execution.sql.get(0));
+            try {
+                for (List<Object> values : execution.parameters) {
+                    setParameters(stmt, values);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            } finally {
+                stmt.close();
+            }
+        } else {
+            Statement stmt = conn.createStatement();
+            try {
+                for (String sql : execution.sql) {
+                    stmt.addBatch(sql);
+                }
+                stmt.executeBatch();
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    private static void setParameters(final PreparedStatement stmt,
+            final List<Object> values) throws SQLException {
+        for (int i = 0; i < values.size(); ++i) {
+            Object value = values.get(i);
+            if (value instanceof NullParameter) {
+                stmt.setNull(i + 1, ((NullParameter) value).getSqlType());
+            } else if (value == null) {
+                stmt.setNull(i + 1, Types.NULL);
+            } else {
+                stmt.setObject(i + 1, value);
+            }
+        }
+    }
+
+    private static void drain(final ResultSet rs) throws SQLException {
+        try {
+            while (rs.next()) {
+                continue;
+            }
+        } finally {
+            rs.close();
+        }
+    }
+}
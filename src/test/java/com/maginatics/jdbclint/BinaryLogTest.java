@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test BinaryLog and BinaryLogAnalyzer. */
+public final class BinaryLogTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("jdbclint", ".log");
+        Assert.assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = 0; i <= 2; ++i) {
+            new File(file.getPath() + "." + i).delete();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testViolationsAndStatements() throws Exception {
+        BinaryLog log = new BinaryLog(file, 1024 * 1024, 1,
+                /*logStatements=*/ true);
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.STATEMENT_DOUBLE_CLOSE),
+                Arrays.<Configuration.Action>asList(log));
+        Connection conn = getConnection(config);
+        for (int i = 0; i < 3; ++i) {
+            Statement stmt = conn.createStatement();
+            stmt.executeQuery("SELECT " + i);
+            stmt.close();
+            stmt.close();
+        }
+        conn.close();
+        log.close();
+
+        String output = analyze(file);
+        Assert.assertTrue(output, output.contains(
+                "3  STATEMENT_DOUBLE_CLOSE"));
+        Assert.assertTrue(output, output.contains("SELECT ?"));
+        Assert.assertTrue(output, output.contains(
+                "BinaryLogTest.testViolationsAndStatements"));
+    }
+
+    @Test
+    public void testViolationFlushedBeforeClose() throws Exception {
+        BinaryLog log = new BinaryLog(file, 1024 * 1024, 1,
+                /*logStatements=*/ false);
+        try {
+            log.apply(Configuration.Check.STATEMENT_DOUBLE_CLOSE,
+                    "SELECT 1", "Statement already closed",
+                    new SQLException());
+            Assert.assertTrue(analyze(file).contains(
+                    "1  STATEMENT_DOUBLE_CLOSE"));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void testViolationsOnlyIsNotListener() throws Exception {
+        BinaryLog log = new BinaryLog(file, 1024 * 1024, 1,
+                /*logStatements=*/ false);
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                Arrays.<Configuration.Action>asList(log));
+        Assert.assertTrue(config.getListeners().isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        BinaryLog log = new BinaryLog(file, 256, 1, /*logStatements=*/ true);
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                Arrays.<Configuration.Action>asList(log));
+        Connection conn = getConnection(config);
+        PreparedStatement stmt = conn.prepareStatement("SELECT 1");
+        for (int i = 0; i < 100; ++i) {
+            stmt.executeQuery().close();
+        }
+        stmt.close();
+        conn.close();
+        log.close();
+
+        File rotated = new File(file.getPath() + ".1");
+        Assert.assertTrue(rotated.exists());
+        Assert.assertFalse(new File(file.getPath() + ".2").exists());
+        Assert.assertTrue(analyze(rotated).contains("SELECT ?"));
+        // current file may only hold the header but must still be readable
+        analyze(file);
+    }
+
+    @Test
+    public void testFingerprint() {
+        Assert.assertEquals("SELECT * FROM t WHERE a = ? AND b2 IN (?, ?)",
+                Utils.fingerprint("SELECT *  FROM t\n WHERE a = 'x''y' " +
+                        "AND b2 IN (1, 2.5)"));
+    }
+
+    private static Connection getConnection(final Configuration config)
+            throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:binarylogtest");
+        return DataSourceProxy.newInstance(dataSource, config)
+                .getConnection();
+    }
+
+    private static String analyze(final File log) throws IOException {
+        BinaryLogAnalyzer analyzer = new BinaryLogAnalyzer();
+        analyzer.read(log);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        analyzer.print(new PrintStream(baos, true, "UTF-8"), 10);
+        return baos.toString("UTF-8");
+    }
+}
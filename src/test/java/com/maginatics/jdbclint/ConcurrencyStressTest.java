@@ -0,0 +1,467 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drive the proxies from many threads at once, with and without sharing
+ * JDBC objects between threads, checking that violations are neither lost
+ * nor duplicated, including with the opt-in checks enabled.  Throughput
+ * under each configuration is reported but not asserted.
+ */
+public final class ConcurrencyStressTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 200;
+    private static final int ROWS = 10;
+    /** Cycles which also update, one in ROWS. */
+    private static final int UPDATES = THREADS * ITERATIONS / ROWS;
+
+    private JdbcDataSource h2DataSource;
+
+    @Before
+    public void setUp() throws SQLException {
+        h2DataSource = new JdbcDataSource();
+        h2DataSource.setURL("jdbc:h2:mem:stress;DB_CLOSE_DELAY=-1");
+        Connection conn = h2DataSource.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute("DROP TABLE IF EXISTS stress_table");
+            stmt.execute("CREATE TABLE stress_table (int_column INT)");
+            stmt.close();
+            PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO stress_table (int_column) VALUES (?)");
+            for (int i = 0; i < ROWS; ++i) {
+                insert.setInt(1, i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testViolationsNotLostOrDuplicated() throws Exception {
+        CountingAction action = new CountingAction();
+        Configuration config = new Configuration(
+                Configuration.DEFAULT_CHECKS,
+                Arrays.<Configuration.Action>asList(action));
+        final DataSource dataSource = DataSourceProxy.newInstance(
+                h2DataSource, config);
+
+        run(new Cycle() {
+            @Override
+            public void run(final int value) throws SQLException {
+                Connection conn = dataSource.getConnection();
+                try {
+                    query(conn, value, /*doubleClose=*/ true);
+                } finally {
+                    conn.close();
+                }
+            }
+        });
+
+        Map<Configuration.Check, Integer> expected =
+                new EnumMap<Configuration.Check, Integer>(
+                        Configuration.Check.class);
+        expected.put(Configuration.Check.PREPARED_STATEMENT_DOUBLE_CLOSE,
+                THREADS * ITERATIONS);
+        expected.put(Configuration.Check.RESULT_SET_DOUBLE_CLOSE,
+                THREADS * ITERATIONS);
+        Assert.assertEquals(expected, action.getCounts());
+        DataSourceProxy proxy = (DataSourceProxy)
+                Proxy.getInvocationHandler(dataSource);
+        Assert.assertEquals(0, proxy.getCheckedOutConnections());
+        Assert.assertTrue(proxy.getMaxCheckedOutConnections() <= THREADS);
+        Assert.assertEquals(THREADS * ITERATIONS,
+                proxy.getConnectionNanos().getCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testSharedConnection() throws Exception {
+        CountingAction action = new CountingAction();
+        Set<Configuration.Check> checks = EnumSet.copyOf(
+                Configuration.DEFAULT_CHECKS);
+        checks.add(Configuration.Check.CONNECTION_CONCURRENT_USE);
+        checks.add(Configuration.Check.PREPARED_STATEMENT_CONCURRENT_USE);
+        checks.add(Configuration.Check.RESULT_SET_CONCURRENT_USE);
+        DataSource dataSource = DataSourceProxy.newInstance(h2DataSource,
+                new Configuration(checks,
+                        Arrays.<Configuration.Action>asList(action)));
+        final Connection conn = dataSource.getConnection();
+        run(new Cycle() {
+            @Override
+            public void run(final int value) throws SQLException {
+                query(conn, value, /*doubleClose=*/ true);
+            }
+        });
+        conn.close();
+
+        Map<Configuration.Check, Integer> expected =
+                new EnumMap<Configuration.Check, Integer>(
+                        Configuration.Check.class);
+        expected.put(Configuration.Check.PREPARED_STATEMENT_DOUBLE_CLOSE,
+                THREADS * ITERATIONS);
+        expected.put(Configuration.Check.RESULT_SET_DOUBLE_CLOSE,
+                THREADS * ITERATIONS);
+        // Overlapping calls on the shared Connection may or may not be
+        // caught, but its Statements and ResultSets are thread-confined.
+        Map<Configuration.Check, Integer> counts = action.getCounts();
+        counts.remove(Configuration.Check.CONNECTION_CONCURRENT_USE);
+        Assert.assertEquals(expected, counts);
+    }
+
+    @Test(timeout = 60000)
+    public void testSharedStatement() throws Exception {
+        CountingAction action = new CountingAction();
+        DataSource dataSource = DataSourceProxy.newInstance(h2DataSource,
+                new Configuration(Configuration.DEFAULT_CHECKS,
+                        Arrays.<Configuration.Action>asList(action)));
+        Connection conn = dataSource.getConnection();
+        final PreparedStatement stmt = conn.prepareStatement(
+                "UPDATE stress_table SET int_column = int_column " +
+                "WHERE int_column = 0");
+        run(new Cycle() {
+            @Override
+            public void run(final int value) throws SQLException {
+                // H2 shares the update count between threads, so only
+                // the proxy's bookkeeping is checked.
+                stmt.executeUpdate();
+            }
+        });
+        // Concurrent executes must leave the lifecycle state intact, so
+        // only the deliberate second close reports.
+        stmt.close();
+        stmt.close();
+        conn.close();
+
+        Map<Configuration.Check, Integer> expected =
+                new EnumMap<Configuration.Check, Integer>(
+                        Configuration.Check.class);
+        expected.put(Configuration.Check.PREPARED_STATEMENT_DOUBLE_CLOSE, 1);
+        Assert.assertEquals(expected, action.getCounts());
+    }
+
+    @Test(timeout = 60000)
+    public void testSharedStatementIdleTracker() throws Exception {
+        CountingAction action = new CountingAction();
+        Map<Configuration.Threshold, Long> thresholds =
+                new EnumMap<Configuration.Threshold, Long>(
+                        Configuration.Threshold.class);
+        thresholds.put(Configuration.Threshold.IDLE_OPEN_MILLIS, 500L);
+        DataSource dataSource = DataSourceProxy.newInstance(h2DataSource,
+                new Configuration(EnumSet.of(
+                        Configuration.Check.PREPARED_STATEMENT_IDLE_OPEN),
+                        Arrays.<Configuration.Action>asList(action),
+                        thresholds));
+        Connection conn = dataSource.getConnection();
+        final PreparedStatement stmt = conn.prepareStatement(
+                "UPDATE stress_table SET int_column = int_column " +
+                "WHERE int_column = 0");
+        try {
+            run(new Cycle() {
+                @Override
+                public void run(final int value) throws SQLException {
+                    stmt.executeUpdate();
+                }
+            });
+            // Balanced calls from all threads leave the statement idle, so
+            // the sweeper reports it exactly once.
+            long deadline = System.nanoTime() +
+                    TimeUnit.SECONDS.toNanos(10);
+            while (action.getCounts().isEmpty() &&
+                    System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            Thread.sleep(1500);
+            Map<Configuration.Check, Integer> expected =
+                    new EnumMap<Configuration.Check, Integer>(
+                            Configuration.Check.class);
+            expected.put(Configuration.Check.PREPARED_STATEMENT_IDLE_OPEN,
+                    1);
+            Assert.assertEquals(expected, action.getCounts());
+        } finally {
+            stmt.close();
+            conn.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testOptInChecks() throws Exception {
+        CountingAction action = new CountingAction();
+        Set<Configuration.Check> checks = EnumSet.copyOf(
+                Configuration.DEFAULT_CHECKS);
+        checks.addAll(EnumSet.of(
+                Configuration.Check.CONNECTION_AUTO_COMMIT_UPDATES,
+                Configuration.Check.CONNECTION_COMMIT_PER_UPDATE,
+                Configuration.Check.CONNECTION_CONCURRENT_USE,
+                Configuration.Check.PREPARED_STATEMENT_CONCURRENT_USE,
+                Configuration.Check.PREPARED_STATEMENT_IDLE_OPEN,
+                Configuration.Check.RESULT_SET_CONCURRENT_USE,
+                Configuration.Check.RESULT_SET_IDLE_OPEN,
+                Configuration.Check.WORK_UNIT_OVER_BUDGET));
+        Map<Configuration.Threshold, Long> thresholds =
+                new EnumMap<Configuration.Threshold, Long>(
+                        Configuration.Threshold.class);
+        thresholds.put(Configuration.Threshold.READ_ONLY_ROUTING_CONNECTIONS,
+                1L);
+        thresholds.put(Configuration.Threshold.WORK_UNIT_MAX_STATEMENTS, 1L);
+        final Configuration config = new Configuration(checks,
+                Arrays.<Configuration.Action>asList(action), thresholds);
+        final DataSource dataSource = DataSourceProxy.newInstance(
+                h2DataSource, config);
+
+        run(new Cycle() {
+            @Override
+            public void run(final int value) throws SQLException {
+                WorkUnit unit = WorkUnit.begin("stress", config);
+                try {
+                    Connection conn = dataSource.getConnection();
+                    try {
+                        query(conn, value, /*doubleClose=*/ false);
+                        if (value == 0) {
+                            update(conn);
+                        }
+                    } finally {
+                        conn.close();
+                    }
+                } finally {
+                    unit.end();
+                }
+                Assert.assertEquals(1, unit.getConnections());
+                Assert.assertEquals(1, unit.getRows());
+                if (value == 0) {
+                    Assert.assertEquals(2, unit.getStatements());
+                } else {
+                    Assert.assertEquals(1, unit.getStatements());
+                }
+            }
+        });
+
+        // Only the units which also updated exceed their budget; the
+        // detectors and idle trackers see thread-confined, closed objects.
+        Map<Configuration.Check, Integer> expected =
+                new EnumMap<Configuration.Check, Integer>(
+                        Configuration.Check.class);
+        expected.put(Configuration.Check.WORK_UNIT_OVER_BUDGET, UPDATES);
+        Assert.assertEquals(expected, action.getCounts());
+        Statistics statistics = config.getStatistics();
+        Assert.assertEquals(THREADS * ITERATIONS + UPDATES,
+                totalCount(statistics.getHistograms(
+                        Statistics.Metric.STATEMENTS_PER_COMMIT_BY_CALL_SITE)));
+        Map<String, Histogram> writes = statistics.getHistograms(
+                Statistics.Metric.CONNECTION_WRITES_BY_CALL_SITE);
+        Assert.assertEquals(THREADS * ITERATIONS, totalCount(writes));
+        long wrote = 0;
+        for (Histogram histogram : writes.values()) {
+            wrote += histogram.getBucketCount(1);
+        }
+        Assert.assertEquals(UPDATES, wrote);
+    }
+
+    @Test(timeout = 120000)
+    public void testThroughput() throws Exception {
+        final DataSource[] dataSources = {
+            h2DataSource,
+            DataSourceProxy.newInstance(h2DataSource, new Configuration(
+                    Configuration.DEFAULT_CHECKS,
+                    Arrays.<Configuration.Action>asList(
+                            new CountingAction()))),
+            DataSourceProxy.newInstance(h2DataSource, new Configuration(
+                    EnumSet.allOf(Configuration.Check.class),
+                    Arrays.<Configuration.Action>asList(
+                            new CountingAction())))
+        };
+        String[] names = {"unproxied", "default checks", "all checks"};
+        for (int pass = 0; pass < 2; ++pass) {
+            // The first pass warms up the JIT and is not reported.
+            for (int i = 0; i < dataSources.length; ++i) {
+                final DataSource dataSource = dataSources[i];
+                long startNanos = System.nanoTime();
+                run(new Cycle() {
+                    @Override
+                    public void run(final int value) throws SQLException {
+                        Connection conn = dataSource.getConnection();
+                        try {
+                            query(conn, value, /*doubleClose=*/ false);
+                        } finally {
+                            conn.close();
+                        }
+                    }
+                });
+                long elapsedNanos = System.nanoTime() - startNanos;
+                if (pass == 1) {
+                    System.out.printf("%s: %s %.0f cycles/s%n",
+                            getClass().getSimpleName(), names[i],
+                            THREADS * ITERATIONS * 1e9 / elapsedNanos);
+                }
+            }
+        }
+    }
+
+    /** One unit of work run repeatedly by each thread. */
+    private interface Cycle {
+        void run(int value) throws SQLException;
+    }
+
+    /**
+     * Run ITERATIONS cycles on each of THREADS threads, released at once,
+     * rethrowing the first failure.
+     */
+    private static void run(final Cycle cycle) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; ++i) {
+            final int seed = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < ITERATIONS; ++j) {
+                            cycle.run((seed + j) % ROWS);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }, "jdbclint-stress-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t != null) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /** Select the row holding value, optionally closing everything twice. */
+    private static void query(final Connection conn, final int value,
+            final boolean doubleClose) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT int_column FROM stress_table WHERE int_column = ?");
+        stmt.setInt(1, value);
+        ResultSet rs = stmt.executeQuery();
+        int rows = 0;
+        while (rs.next()) {
+            Assert.assertEquals(value, rs.getInt(1));
+            ++rows;
+        }
+        Assert.assertEquals(1, rows);
+        rs.close();
+        stmt.close();
+        if (doubleClose) {
+            rs.close();
+            stmt.close();
+        }
+    }
+
+    /** Execute an update which leaves the rows unchanged. */
+    private static void update(final Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(
+                "UPDATE stress_table SET int_column = int_column " +
+                "WHERE int_column = 0");
+        try {
+            stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static long totalCount(final Map<String, Histogram> histograms) {
+        long count = 0;
+        for (Histogram histogram : histograms.values()) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    /** Count violations per Check from any thread. */
+    private static final class CountingAction implements
+            Configuration.CheckAction {
+        private final Map<Configuration.Check, AtomicInteger> counts;
+
+        CountingAction() {
+            Map<Configuration.Check, AtomicInteger> map =
+                    new EnumMap<Configuration.Check, AtomicInteger>(
+                            Configuration.Check.class);
+            for (Configuration.Check check : Configuration.Check.values()) {
+                map.put(check, new AtomicInteger());
+            }
+            counts = Collections.unmodifiableMap(map);
+        }
+
+        @Override
+        public void apply(final Configuration.Check check, final String sql,
+                final String message, final Exception exception) {
+            counts.get(check).incrementAndGet();
+        }
+
+        @Override
+        public void apply(final String message, final Exception exception) {
+            throw new AssertionError("violation without check: " + message);
+        }
+
+        /** Return the non-zero counts. */
+        Map<Configuration.Check, Integer> getCounts() {
+            Map<Configuration.Check, Integer> result =
+                    new EnumMap<Configuration.Check, Integer>(
+                            Configuration.Check.class);
+            for (Map.Entry<Configuration.Check, AtomicInteger> entry :
+                    counts.entrySet()) {
+                if (entry.getValue().get() != 0) {
+                    result.put(entry.getKey(), entry.getValue().get());
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -16,19 +16,39 @@
 
 package com.maginatics.jdbclint;
 
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Blob;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
 import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -37,10 +57,15 @@ import org.junit.rules.ExpectedException;
 /** Test JDBC lint checks. */
 public final class JdbcLintTest {
     private static final Configuration CONFIGURATION = new Configuration(
-            EnumSet.allOf(Configuration.Check.class), Arrays.asList(
+            EnumSet.complementOf(EnumSet.of(Configuration.Check
+                            .PREPARED_STATEMENT_MISSING_QUERY_TIMEOUT,
+                    Configuration.Check.STATEMENT_MISSING_QUERY_TIMEOUT)),
+            Arrays.asList(
                     Configuration.PRINT_STACK_TRACE_ACTION,
                     Configuration.THROW_SQL_EXCEPTION_ACTION));
     private static final String DATABASE_NAME = "jdbclinttest";
+    private static CountDownLatch enteredLatch;
+    private static CountDownLatch releaseLatch;
     private DataSource dataSource;
 
     /** Helper to match arbitrary exceptions in tests. */
@@ -115,6 +140,213 @@ public final class JdbcLintTest {
         conn.close();
     }
 
+    @Test
+    public void testConnectionAutoCommitUpdates() throws SQLException {
+        Connection conn = getDataSource(new Configuration(
+                CONFIGURATION.getChecks(), CONFIGURATION.getActions(),
+                thresholds(Configuration.Threshold.AUTO_COMMIT_UPDATES, 3L)))
+                .getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        stmt.setInt(1, 0);
+        stmt.executeUpdate();
+        stmt.executeUpdate();
+        // Queries through execute are not updates.
+        Statement query = conn.createStatement();
+        query.execute("SELECT int_column FROM int_table");
+        query.close();
+
+        thrown.expect(SQLException.class);
+        thrown.expectMessage("Connection executed 3 updates in auto-commit " +
+                "mode");
+        stmt.executeUpdate();
+    }
+
+    @Test
+    public void testConnectionCommitPerUpdate() throws SQLException {
+        Connection conn = getDataSource(new Configuration(
+                CONFIGURATION.getChecks(), CONFIGURATION.getActions(),
+                thresholds(Configuration.Threshold.COMMIT_PER_UPDATE_COMMITS,
+                        2L))).getConnection();
+        conn.setAutoCommit(false);
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        stmt.setInt(1, 0);
+        stmt.executeUpdate();
+        conn.commit();
+        stmt.executeUpdate();
+
+        thrown.expect(SQLException.class);
+        thrown.expectMessage("Connection committed after each of 2 updates");
+        conn.commit();
+    }
+
+    @Test
+    public void testConnectionStatementsPerCommit() throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.CONNECTION_COMMIT_PER_UPDATE),
+                CONFIGURATION.getActions());
+        Connection conn = getDataSource(config).getConnection();
+        conn.setAutoCommit(false);
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        for (int i = 0; i < 4; ++i) {
+            stmt.setInt(1, i);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.setInt(1, 0);
+        stmt.executeUpdate();
+        conn.commit();
+        stmt.executeUpdate();
+        // Enabling auto-commit commits, then each statement commits.
+        conn.setAutoCommit(true);
+        stmt.executeUpdate();
+        stmt.close();
+        conn.close();
+
+        Map<String, Histogram> histograms = config.getStatistics()
+                .getHistograms(
+                        Statistics.Metric.STATEMENTS_PER_COMMIT_BY_CALL_SITE);
+        Assert.assertEquals(histograms.toString(), 1, histograms.size());
+        Histogram histogram = histograms.values().iterator().next();
+        Assert.assertEquals(3, histogram.getCount());
+        Assert.assertEquals(2, histogram.getBucketCount(1));
+        Assert.assertEquals(2, histogram.getMax());
+    }
+
+    @Test
+    public void testConnectionStatementsPerCommitDisabled()
+            throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                CONFIGURATION.getActions());
+        Connection conn = getDataSource(config).getConnection();
+        conn.setAutoCommit(false);
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        stmt.setInt(1, 0);
+        stmt.executeUpdate();
+        conn.commit();
+        stmt.close();
+        conn.close();
+
+        Assert.assertTrue(config.getStatistics().getHistograms(
+                Statistics.Metric.STATEMENTS_PER_COMMIT_BY_CALL_SITE)
+                .isEmpty());
+    }
+
+    @Test
+    public void testDataSourceCheckedOutConnections() throws SQLException {
+        DataSource noChecksDataSource = getDataSource(new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                CONFIGURATION.getActions()));
+        DataSourceProxy proxy = (DataSourceProxy)
+                Proxy.getInvocationHandler(noChecksDataSource);
+        Connection conn1 = noChecksDataSource.getConnection();
+        Connection conn2 = noChecksDataSource.getConnection();
+        Assert.assertEquals(2, proxy.getCheckedOutConnections());
+        conn1.close();
+        Assert.assertEquals(1, proxy.getCheckedOutConnections());
+        Assert.assertEquals(2, proxy.getMaxCheckedOutConnections());
+        Assert.assertEquals(2, proxy.getConnectionNanos().getCount());
+        conn2.close();
+        Assert.assertEquals(0, proxy.getCheckedOutConnections());
+    }
+
+    @Test
+    public void testDataSourceSlowGetConnection() throws SQLException {
+        List<String> messages = new CopyOnWriteArrayList<String>();
+        DataSource slowDataSource = getDataSource(new Configuration(
+                EnumSet.of(Configuration.Check.DATA_SOURCE_SLOW_GET_CONNECTION),
+                Arrays.asList(collectingAction(messages)),
+                thresholds(Configuration.Threshold.GET_CONNECTION_MILLIS, 0L)));
+        Connection conn1 = slowDataSource.getConnection();
+        Connection conn2 = slowDataSource.getConnection();
+        conn1.close();
+        conn2.close();
+        Assert.assertEquals(messages.toString(), 2, messages.size());
+        Assert.assertTrue(messages.get(1), messages.get(1).contains(
+                "held by " + getClass().getName() +
+                ".testDataSourceSlowGetConnection"));
+
+        // A throwing action must not leak the connection it rejects.
+        slowDataSource = getDataSource(configWithThreshold(
+                Configuration.Check.DATA_SOURCE_SLOW_GET_CONNECTION,
+                Configuration.Threshold.GET_CONNECTION_MILLIS, 0L));
+        DataSourceProxy proxy = (DataSourceProxy)
+                Proxy.getInvocationHandler(slowDataSource);
+        try {
+            slowDataSource.getConnection();
+            Assert.fail("expected SQLException");
+        } catch (SQLException sqle) {
+            // expected
+        }
+        Assert.assertEquals(0, proxy.getCheckedOutConnections());
+    }
+
+    @Test
+    public void testDataSourceFailedGetConnectionTimed() throws SQLException {
+        JdbcDataSource badDataSource = new JdbcDataSource();
+        badDataSource.setURL("jdbc:h2:mem:" + DATABASE_NAME +
+                ";NO_SUCH_SETTING=1");
+        DataSource failingDataSource = DataSourceProxy.newInstance(
+                badDataSource, CONFIGURATION);
+        DataSourceProxy proxy = (DataSourceProxy)
+                Proxy.getInvocationHandler(failingDataSource);
+        try {
+            failingDataSource.getConnection();
+            Assert.fail("expected SQLException");
+        } catch (SQLException sqle) {
+            // expected
+        }
+        Assert.assertEquals(1, proxy.getConnectionNanos().getCount());
+        Assert.assertEquals(0, proxy.getCheckedOutConnections());
+    }
+
+    @Test
+    public void testConnectionConcurrentUse() throws Exception {
+        final Connection conn = dataSource.getConnection();
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE ALIAS IF NOT EXISTS await_latch FOR \"" +
+                getClass().getName() + ".awaitLatch\"");
+        stmt.close();
+        enteredLatch = new CountDownLatch(1);
+        releaseLatch = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PreparedStatement stmt = conn.prepareStatement(
+                            "CALL await_latch()");
+                    stmt.executeQuery().close();
+                    stmt.close();
+                } catch (SQLException sqle) {
+                    throw new RuntimeException(sqle);
+                }
+            }
+        });
+        thread.start();
+        try {
+            Assert.assertTrue(enteredLatch.await(10, TimeUnit.SECONDS));
+            // pool reapers may check a connection from another thread
+            Assert.assertFalse(conn.isClosed());
+            thrown.expect(SQLException.class);
+            thrown.expectMessage("Connection used concurrently by threads");
+            conn.createStatement();
+        } finally {
+            releaseLatch.countDown();
+            thread.join();
+        }
+    }
+
+    /** Called from H2 to block a statement until released. */
+    public static int awaitLatch() throws InterruptedException {
+        enteredLatch.countDown();
+        releaseLatch.await();
+        return 0;
+    }
+
     @Test
     public void testPreparedStatementDoubleClose() throws SQLException {
         Connection conn = dataSource.getConnection();
@@ -324,10 +556,684 @@ public final class JdbcLintTest {
         conn.close();
     }
 
+    @Test
+    public void testVirtualThreadBlocking() throws Exception {
+        Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread",
+                    Runnable.class);
+        } catch (NoSuchMethodException nsme) {
+            Assume.assumeTrue(false);
+            return;
+        }
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        Map<Configuration.Threshold, Long> thresholds = thresholds(
+                Configuration.Threshold.VIRTUAL_THREAD_BLOCKING_MILLIS, 0L);
+        thresholds.put(Configuration.Threshold.VIRTUAL_THREAD_BLOCKING_COUNT,
+                2L);
+        final Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.VIRTUAL_THREAD_BLOCKING),
+                Arrays.asList(collectingAction(messages)), thresholds);
+        final AtomicReference<SQLException> thrownInThread =
+                new AtomicReference<SQLException>();
+        Thread thread = (Thread) startVirtualThread.invoke(null,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Connection conn = getDataSource(config)
+                                    .getConnection();
+                            for (int i = 0; i < 3; ++i) {
+                                conn.prepareStatement("SELECT 1").close();
+                            }
+                            conn.close();
+                        } catch (SQLException sqle) {
+                            thrownInThread.set(sqle);
+                        }
+                    }
+                });
+        thread.join();
+
+        Assert.assertNull(thrownInThread.get());
+        int reports = 0;
+        for (String message : messages) {
+            if (message.startsWith("Connection.prepareStatement at ")) {
+                Assert.assertTrue(message, message.contains(
+                        "blocked virtual threads 2 times"));
+                ++reports;
+            }
+        }
+        Assert.assertEquals(messages.toString(), 1, reports);
+        Assert.assertTrue(config.getStatistics().getHistograms(
+                Statistics.Metric.VIRTUAL_THREAD_BLOCKING_BY_CATEGORY)
+                .containsKey("Connection.prepareStatement"));
+    }
+
+    @Test
+    public void testQueryFullScan() throws Exception {
+        JdbcDataSource explainDataSource = new JdbcDataSource();
+        explainDataSource.setURL("jdbc:h2:mem:" + DATABASE_NAME);
+        ExplainSampler sampler = new ExplainSampler(explainDataSource,
+                ExplainSampler.H2_PLAN_PARSER);
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        Map<Configuration.Threshold, Long> thresholds = thresholds(
+                Configuration.Threshold.EXPLAIN_SLOW_QUERY_MILLIS, 0L);
+        thresholds.put(Configuration.Threshold.EXPLAIN_INTERVAL_MILLIS, 0L);
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.QUERY_FULL_SCAN),
+                Arrays.asList(collectingAction(messages)),
+                thresholds, Arrays.<Configuration.Listener>asList(sampler));
+        try {
+            Connection conn = getDataSource(config).getConnection();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT * FROM int_table WHERE int_column = ?");
+            stmt.setInt(1, 0);
+            stmt.executeQuery().close();
+            stmt.close();
+            conn.close();
+            Assert.assertTrue(sampler.awaitQuiescence(10, TimeUnit.SECONDS));
+        } finally {
+            sampler.close();
+        }
+
+        Assert.assertEquals(1, messages.size());
+        Assert.assertTrue(messages.get(0), messages.get(0).contains(
+                "Query scans full table [PUBLIC.INT_TABLE]"));
+    }
+
+    @Test
+    public void testStatementMissingQueryTimeout() throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check
+                        .PREPARED_STATEMENT_MISSING_QUERY_TIMEOUT),
+                Arrays.asList(Configuration.THROW_SQL_EXCEPTION_ACTION));
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement stmt = conn.prepareStatement("SELECT 1");
+        stmt.setQueryTimeout(5);
+        stmt.executeQuery().close();
+        stmt.close();
+
+        stmt = conn.prepareStatement("SELECT 1");
+        try {
+            thrown.expect(SQLException.class);
+            thrown.expectMessage("executed without setQueryTimeout");
+            stmt.executeQuery();
+        } finally {
+            stmt.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testStatementQueryTimeoutEnforced() throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                Collections.<Configuration.Action>emptyList(),
+                thresholds(Configuration.Threshold.QUERY_TIMEOUT_SECONDS, 1L));
+        Connection conn = getDataSource(config).getConnection();
+        Statement stmt = conn.createStatement();
+        long start = System.nanoTime();
+        try {
+            stmt.executeQuery("SELECT COUNT(*) FROM " +
+                    "SYSTEM_RANGE(1, 100000) a, SYSTEM_RANGE(1, 100000) b");
+            Assert.fail("expected timeout");
+        } catch (SQLTimeoutException sqlte) {
+            Assert.assertTrue(sqlte.getMessage(),
+                    sqlte.getMessage().contains("cancelled"));
+        } finally {
+            stmt.close();
+            conn.close();
+        }
+        Assert.assertTrue(System.nanoTime() - start <
+                TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testPreparedStatementBadBatchSize() throws SQLException {
+        Map<Configuration.Threshold, Long> thresholds = thresholds(
+                Configuration.Threshold.BATCH_SIZE_MAX, 3L);
+        thresholds.put(Configuration.Threshold.BATCH_SIZE_MIN_BATCHES, 3L);
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        Configuration config = new Configuration(
+                EnumSet.of(
+                        Configuration.Check.PREPARED_STATEMENT_BAD_BATCH_SIZE),
+                Arrays.asList(collectingAction(messages)),
+                thresholds);
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        for (int i = 0; i < 3; ++i) {
+            stmt.setInt(1, i);
+            stmt.addBatch();
+            stmt.executeBatch();
+        }
+        for (int i = 0; i < 4; ++i) {
+            stmt.setInt(1, i);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+        conn.close();
+
+        Assert.assertEquals(messages.toString(), 2, messages.size());
+        Assert.assertTrue(messages.get(0), messages.get(0).contains(
+                "batches average 1.0 entries over 3 batches"));
+        Assert.assertTrue(messages.get(1), messages.get(1).contains(
+                "batch of 4 entries exceeds 3"));
+        Histogram histogram = config.getStatistics().getHistograms(
+                Statistics.Metric.BATCH_SIZE_BY_SQL).get(
+                        "INSERT INTO int_table (int_column) VALUES (?)");
+        Assert.assertEquals(4, histogram.getCount());
+        Assert.assertEquals(4, histogram.getMax());
+    }
+
+    @Test
+    public void testResultSetUnusedScroll() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        stmt.setInt(1, 0);
+        stmt.executeUpdate();
+        stmt.close();
+        stmt = conn.prepareStatement("SELECT int_column FROM int_table",
+                ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        ResultSet rs = stmt.executeQuery();
+        rs.last();
+        rs.close();
+
+        rs = stmt.executeQuery();
+        while (rs.next()) {
+            rs.getInt(1);
+        }
+        try {
+            thrown.expect(SQLException.class);
+            thrown.expectMessage("ResultSet is scrollable but was only read " +
+                    "forward");
+            rs.close();
+        } finally {
+            stmt.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testWorkUnitOverBudget() throws SQLException {
+        Configuration config = configWithThreshold(
+                Configuration.Check.WORK_UNIT_OVER_BUDGET,
+                Configuration.Threshold.WORK_UNIT_MAX_STATEMENTS, 2L);
+        DataSource unitDataSource = getDataSource(config);
+        WorkUnit unit = WorkUnit.begin("testWorkUnitOverBudget", config);
+        Assert.assertSame(unit, WorkUnit.current());
+        Connection conn = unitDataSource.getConnection();
+        for (int i = 0; i < 3; ++i) {
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT int_column FROM int_table");
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                rs.getInt(1);
+            }
+            rs.close();
+            stmt.close();
+        }
+        conn.close();
+
+        Assert.assertEquals(1, unit.getConnections());
+        Assert.assertEquals(3, unit.getStatements());
+        try {
+            thrown.expect(SQLException.class);
+            thrown.expectMessage("Work unit testWorkUnitOverBudget " +
+                    "exceeded budget: statements 3 > 2");
+            unit.end();
+        } finally {
+            Assert.assertNull(WorkUnit.current());
+        }
+    }
+
+    @Test
+    public void testWorkUnitBlobBytes() throws Exception {
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                CONFIGURATION.getActions());
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "CREATE TABLE blob_table (blob_column BLOB)");
+        stmt.executeUpdate();
+        stmt.close();
+        stmt = conn.prepareStatement(
+                "INSERT INTO blob_table (blob_column) VALUES (?)");
+        stmt.setBytes(1, new byte[] {1, 2, 3, 4});
+        stmt.executeUpdate();
+        stmt.close();
+
+        WorkUnit unit = WorkUnit.begin("testWorkUnitBlobBytes", config);
+        try {
+            stmt = conn.prepareStatement(
+                    "SELECT blob_column FROM blob_table");
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            Blob blob = rs.getBlob("blob_column");
+            Assert.assertEquals(1, blob.getBytes(1, 1).length);
+            InputStream is = blob.getBinaryStream();
+            Assert.assertEquals(1, is.read());
+            Assert.assertEquals(3, is.read(new byte[8]));
+            Assert.assertEquals(-1, is.read());
+            is.close();
+            blob.free();
+            rs.close();
+            stmt.close();
+        } finally {
+            unit.end();
+            conn.close();
+        }
+        Assert.assertEquals(1 + 4, unit.getBlobBytes());
+    }
+
+    @Test
+    public void testResultSetRepeatedMetaData() throws SQLException {
+        Configuration config = configWithThreshold(
+                Configuration.Check.RESULT_SET_REPEATED_METADATA,
+                Configuration.Threshold.METADATA_CALLS, 2L);
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT int_column FROM int_table");
+        ResultSet rs = stmt.executeQuery();
+        Assert.assertSame(rs.getMetaData(), rs.getMetaData());
+        try {
+            thrown.expect(SQLException.class);
+            thrown.expectMessage("ResultSet.getMetaData called more than 2 " +
+                    "times");
+            rs.getMetaData();
+        } finally {
+            rs.close();
+            stmt.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testCacheDatabaseMetaData() throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.CACHE_DATABASE_METADATA),
+                Collections.<Configuration.Action>emptyList());
+        DataSource cachingDataSource = getDataSource(config);
+        Connection conn = cachingDataSource.getConnection();
+        DatabaseMetaData metaData = conn.getMetaData();
+        Assert.assertSame(metaData, conn.getMetaData());
+        Assert.assertSame(conn, metaData.getConnection());
+        Assert.assertTrue(metaData.supportsBatchUpdates());
+        String version = metaData.getDatabaseProductVersion();
+        conn.close();
+
+        conn = cachingDataSource.getConnection();
+        Assert.assertSame(version,
+                conn.getMetaData().getDatabaseProductVersion());
+        conn.close();
+
+        config.clearMetaDataCache();
+        conn = cachingDataSource.getConnection();
+        String refreshed = conn.getMetaData().getDatabaseProductVersion();
+        Assert.assertEquals(version, refreshed);
+        Assert.assertNotSame(version, refreshed);
+        conn.close();
+    }
+
+    @Test
+    public void testResultSetLabelGetters() throws SQLException {
+        Configuration config = configWithThreshold(
+                Configuration.Check.RESULT_SET_LABEL_GETTERS,
+                Configuration.Threshold.LABEL_GETTER_ROWS, 2L);
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        for (int i = 0; i < 3; ++i) {
+            stmt.setInt(1, i);
+            stmt.executeUpdate();
+        }
+        stmt.close();
+
+        stmt = conn.prepareStatement("SELECT int_column FROM int_table");
+        ResultSet rs = stmt.executeQuery();
+        try {
+            thrown.expect(SQLException.class);
+            thrown.expectMessage("ResultSet read 2 rows using only column " +
+                    "labels [int_column]");
+            while (rs.next()) {
+                rs.getInt("INT_COLUMN");
+            }
+        } finally {
+            rs.close();
+            stmt.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testIdleOpenCursor() throws Exception {
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.PREPARED_STATEMENT_IDLE_OPEN,
+                        Configuration.Check.RESULT_SET_IDLE_OPEN),
+                Arrays.asList(collectingAction(messages)),
+                thresholds(Configuration.Threshold.IDLE_OPEN_MILLIS, 100L));
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT int_column FROM int_table");
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+        // The sweeper runs once per second.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messages.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        rs.close();
+        stmt.close();
+        conn.close();
+
+        Assert.assertEquals(messages.toString(), 2, messages.size());
+        for (String message : messages) {
+            Assert.assertTrue(message, message.contains(
+                    "open and idle for "));
+            Assert.assertTrue(message, message.contains(
+                    "gaps between calls in ms: count="));
+        }
+    }
+
+    @Test
+    public void testReadOnlyRouting() throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                Arrays.asList(Configuration.THROW_SQL_EXCEPTION_ACTION),
+                thresholds(
+                        Configuration.Threshold.READ_ONLY_ROUTING_CONNECTIONS,
+                        2L));
+        DataSource source = getDataSource(config);
+        List<Boolean> routed = new ArrayList<Boolean>();
+        for (int i = 0; i < 6; ++i) {
+            Connection conn = source.getConnection();
+            ConnectionProxy proxy = (ConnectionProxy)
+                    Proxy.getInvocationHandler(conn);
+            if (i == 2) {
+                // never route inside a transaction
+                conn.setAutoCommit(false);
+            }
+            Statement stmt = conn.createStatement();
+            routed.add(proxy.isRoutedReadOnly());
+            if (i == 4) {
+                stmt.executeUpdate(
+                        "INSERT INTO int_table (int_column) VALUES (1)");
+                // a Connection which wrote stays unrouted
+                Statement after = conn.createStatement();
+                Assert.assertFalse(proxy.isRoutedReadOnly());
+                after.executeQuery("SELECT int_column FROM int_table")
+                        .close();
+                after.close();
+            } else {
+                stmt.executeQuery("SELECT int_column FROM int_table").close();
+            }
+            stmt.close();
+            if (i == 2) {
+                conn.commit();
+            } else if (i == 3) {
+                // undo routing before a transaction opens
+                conn.setAutoCommit(false);
+                Assert.assertFalse(proxy.isRoutedReadOnly());
+                Assert.assertFalse(conn.isReadOnly());
+                conn.commit();
+            }
+            conn.close();
+        }
+
+        Assert.assertEquals(Arrays.asList(false, false, false, true, true,
+                false), routed);
+        Map<String, Histogram> writes = config.getStatistics().getHistograms(
+                Statistics.Metric.CONNECTION_WRITES_BY_CALL_SITE);
+        Assert.assertEquals(writes.toString(), 1, writes.size());
+        Histogram histogram = writes.values().iterator().next();
+        Assert.assertEquals(6, histogram.getCount());
+        Assert.assertEquals(5, histogram.getBucketCount(0));
+    }
+
+    @Test
+    public void testReadOnlyRoutingResetBeforePoolReuse() throws Exception {
+        Configuration config = new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                Arrays.asList(Configuration.THROW_SQL_EXCEPTION_ACTION),
+                thresholds(
+                        Configuration.Threshold.READ_ONLY_ROUTING_CONNECTIONS,
+                        1L));
+        JdbcDataSource jdbcDataSource = new JdbcDataSource();
+        jdbcDataSource.setURL("jdbc:h2:mem:" + DATABASE_NAME);
+        Connection physical = jdbcDataSource.getConnection();
+        AtomicBoolean readOnly = new AtomicBoolean();
+        DataSource source = DataSourceProxy.newInstance(
+                poolOfOne(physical, readOnly), config);
+        try {
+            for (int i = 0; i < 2; ++i) {
+                Connection conn = source.getConnection();
+                Statement stmt = conn.createStatement();
+                Assert.assertEquals(i == 1, readOnly.get());
+                stmt.executeQuery("SELECT int_column FROM int_table").close();
+                stmt.close();
+                conn.close();
+                // the pool must get the Connection back writable
+                Assert.assertFalse(readOnly.get());
+            }
+            Statement stmt = physical.createStatement();
+            stmt.executeUpdate("INSERT INTO int_table (int_column) VALUES (1)");
+            stmt.close();
+        } finally {
+            physical.close();
+        }
+    }
+
+    @Test
+    public void testConnectionInsertThenSelect() throws SQLException {
+        Configuration config = configWithThreshold(
+                Configuration.Check.CONNECTION_INSERT_THEN_SELECT,
+                Configuration.Threshold.INSERT_THEN_SELECT_COUNT, 2L);
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)",
+                Statement.RETURN_GENERATED_KEYS);
+        PreparedStatement select = conn.prepareStatement(
+                "SELECT int_column FROM INT_TABLE WHERE int_column = ?");
+        try {
+            // Reading generated keys instead does not count.
+            insert.setInt(1, 1);
+            insert.executeUpdate();
+            insert.getGeneratedKeys().close();
+            select.setInt(1, 1);
+            select.executeQuery().close();
+            for (int i = 2; i < 4; ++i) {
+                insert.setInt(1, i);
+                insert.executeUpdate();
+                select.setInt(1, i);
+                if (i == 3) {
+                    thrown.expect(SQLException.class);
+                    thrown.expectMessage("Connection selected from " +
+                            "int_table right after inserting into it 2 " +
+                            "times");
+                }
+                select.executeQuery().close();
+            }
+        } finally {
+            insert.close();
+            select.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testConnectionInsertThenAggregate() throws SQLException {
+        Configuration config = configWithThreshold(
+                Configuration.Check.CONNECTION_INSERT_THEN_SELECT,
+                Configuration.Threshold.INSERT_THEN_SELECT_COUNT, 1L);
+        Connection conn = getDataSource(config).getConnection();
+        PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO int_table (int_column) VALUES (?)");
+        PreparedStatement max = conn.prepareStatement(
+                "SELECT MAX(int_column) FROM int_table");
+        PreparedStatement count = conn.prepareStatement(
+                "SELECT COUNT(*) FROM int_table WHERE int_column = ?");
+        PreparedStatement range = conn.prepareStatement(
+                "SELECT int_column FROM int_table WHERE int_column > ?");
+        try {
+            for (PreparedStatement select : Arrays.asList(max, count,
+                    range)) {
+                insert.setInt(1, 1);
+                insert.executeUpdate();
+                if (select != max) {
+                    select.setInt(1, 1);
+                }
+                select.executeQuery().close();
+            }
+            Assert.assertTrue(config.getStatistics().getHistograms(
+                    Statistics.Metric.INSERT_THEN_SELECT_BY_CALL_SITE)
+                    .isEmpty());
+        } finally {
+            insert.close();
+            max.close();
+            count.close();
+            range.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testUnwrapResultSetWithoutChecks() throws SQLException {
+        Configuration config = new Configuration(
+                EnumSet.of(Configuration.Check.STATEMENT_DOUBLE_CLOSE),
+                Arrays.asList(Configuration.THROW_SQL_EXCEPTION_ACTION));
+        Connection conn = getDataSource(config).getConnection();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT int_column FROM int_table");
+        Assert.assertFalse(Proxy.isProxyClass(rs.getClass()));
+        rs.close();
+        stmt.close();
+        Assert.assertTrue(stmt.isClosed());
+        conn.close();
+    }
+
+    @Test
+    public void testConfigurationFromProperties() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("checks", "connection_double_close");
+        properties.setProperty("actions", "THROW_SQL_EXCEPTION");
+        properties.setProperty("AUTO_COMMIT_UPDATES", "7");
+        Configuration config = Configuration.fromProperties(properties);
+        Assert.assertEquals(
+                EnumSet.of(Configuration.Check.CONNECTION_DOUBLE_CLOSE),
+                config.getChecks());
+        Assert.assertEquals(Arrays.asList(
+                Configuration.THROW_SQL_EXCEPTION_ACTION),
+                new ArrayList<Configuration.Action>(config.getActions()));
+        Assert.assertEquals(7, config.getThreshold(
+                Configuration.Threshold.AUTO_COMMIT_UPDATES));
+        Assert.assertEquals(Configuration.DEFAULT_CHECKS,
+                Configuration.fromProperties(new Properties()).getChecks());
+    }
+
+    @Test
+    public void testLintDriver() throws SQLException {
+        org.h2.Driver.load();
+        String url = LintDriver.URL_PREFIX + "jdbc:h2:mem:" + DATABASE_NAME +
+                "?checks=CONNECTION_DOUBLE_CLOSE&actions=THROW_SQL_EXCEPTION";
+        Connection conn = DriverManager.getConnection(url);
+        Assert.assertTrue(Proxy.getInvocationHandler(conn) instanceof
+                ConnectionProxy);
+        // CONNECTION_MISSING_PREPARE_STATEMENT is not enabled
+        conn.close();
+
+        thrown.expect(SQLException.class);
+        thrown.expectMessage("Connection already closed");
+        conn.close();
+    }
+
     private static DataSource getDataSource() {
+        return getDataSource(CONFIGURATION);
+    }
+
+    /** Return thresholds overriding one default, to which tests may add. */
+    private static Map<Configuration.Threshold, Long> thresholds(
+            final Configuration.Threshold threshold, final long value) {
+        Map<Configuration.Threshold, Long> thresholds =
+                new EnumMap<Configuration.Threshold, Long>(
+                        Configuration.Threshold.class);
+        thresholds.put(threshold, value);
+        return thresholds;
+    }
+
+    /** Return a Configuration enabling check which throws on violations. */
+    private static Configuration configWithThreshold(
+            final Configuration.Check check,
+            final Configuration.Threshold threshold, final long value) {
+        return new Configuration(EnumSet.of(check),
+                Arrays.asList(Configuration.THROW_SQL_EXCEPTION_ACTION),
+                thresholds(threshold, value));
+    }
+
+    /** Return an Action which appends violation messages to messages. */
+    private static Configuration.Action collectingAction(
+            final List<String> messages) {
+        return new Configuration.Action() {
+            @Override
+            public void apply(final String message,
+                    final Exception exception) {
+                messages.add(message);
+            }
+        };
+    }
+
+    /**
+     * Return a DataSource which lends the same physical Connection each
+     * time, like a pool of one, tracking its read-only flag in readOnly.
+     */
+    private static DataSource poolOfOne(final Connection physical,
+            final AtomicBoolean readOnly) {
+        final Connection pooled = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args)
+                            throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("close")) {
+                            return null;  // returned to the pool
+                        } else if (name.equals("setReadOnly")) {
+                            readOnly.set((Boolean) args[0]);
+                            return null;
+                        } else if (name.equals("isReadOnly")) {
+                            return readOnly.get();
+                        }
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException ite) {
+                            throw ite.getTargetException();
+                        }
+                    }
+                });
+        return (DataSource) Proxy.newProxyInstance(
+                DataSource.class.getClassLoader(),
+                new Class<?>[] {DataSource.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args) {
+                        if (method.getName().equals("getConnection")) {
+                            return pooled;
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+
+    private static DataSource getDataSource(final Configuration config) {
         JdbcDataSource jdbcDataSource = new JdbcDataSource();
         jdbcDataSource.setURL("jdbc:h2:mem:" + DATABASE_NAME +
                 ";DB_CLOSE_DELAY=-1");
-        return DataSourceProxy.newInstance(jdbcDataSource, CONFIGURATION);
+        return DataSourceProxy.newInstance(jdbcDataSource, config);
     }
 }
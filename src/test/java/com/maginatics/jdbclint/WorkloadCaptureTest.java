@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 - 2014 Maginatics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maginatics.jdbclint;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test WorkloadCapture and WorkloadReplay. */
+public final class WorkloadCaptureTest {
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " +
+            "capture_table (id INT, name VARCHAR(32), created TIMESTAMP)";
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("jdbclint", ".capture");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testCaptureAndReplay() throws Exception {
+        JdbcDataSource source = getDataSource("capturesource");
+        createTable(source);
+        WorkloadCapture capture = new WorkloadCapture(file);
+        Connection conn = DataSourceProxy.newInstance(source,
+                captureConfig(capture)).getConnection();
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO capture_table VALUES (?, ?, ?)");
+        stmt.setInt(1, 1);
+        stmt.setString(2, "one");
+        stmt.setTimestamp(3, new Timestamp(123456789L));
+        stmt.executeUpdate();
+        for (int i = 2; i <= 4; ++i) {
+            stmt.setInt(1, i);
+            stmt.setNull(2, Types.VARCHAR);
+            stmt.setTimestamp(3, null);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+        Statement query = conn.createStatement();
+        ResultSet rs = query.executeQuery("SELECT COUNT(*) FROM capture_table");
+        rs.close();
+        query.close();
+        conn.close();
+        capture.close();
+
+        WorkloadReplay replay = WorkloadReplay.read(file);
+        Assert.assertEquals(1, replay.getSessionCount());
+        JdbcDataSource target = getDataSource("capturetarget");
+        createTable(target);
+        WorkloadReplay.Result result = replay.replay(target, 2,
+                /*speedUp=*/ 0);
+        Assert.assertEquals(result.toString(), 3, result.getExecutions());
+        Assert.assertEquals(result.toString(), 0, result.getErrors());
+        Assert.assertEquals(3, result.getLatencyNanos().getCount());
+
+        Connection targetConn = target.getConnection();
+        try {
+            Statement check = targetConn.createStatement();
+            ResultSet targetRs = check.executeQuery("SELECT name, created " +
+                    "FROM capture_table WHERE id = 1");
+            Assert.assertTrue(targetRs.next());
+            Assert.assertEquals("one", targetRs.getString(1));
+            Assert.assertEquals(new Timestamp(123456789L),
+                    targetRs.getTimestamp(2));
+            targetRs.close();
+            targetRs = check.executeQuery("SELECT COUNT(*) FROM " +
+                    "capture_table");
+            Assert.assertTrue(targetRs.next());
+            Assert.assertEquals(4, targetRs.getInt(1));
+            targetRs.close();
+            check.close();
+        } finally {
+            targetConn.close();
+        }
+    }
+
+    @Test
+    public void testTransactionBoundaries() throws Exception {
+        JdbcDataSource source = getDataSource("transactionsource");
+        createTable(source);
+        WorkloadCapture capture = new WorkloadCapture(file);
+        Connection conn = DataSourceProxy.newInstance(source,
+                captureConfig(capture)).getConnection();
+        conn.setAutoCommit(false);
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO capture_table (id) VALUES (?)");
+        stmt.setInt(1, 1);
+        stmt.executeUpdate();
+        conn.rollback();
+        stmt.setInt(1, 2);
+        stmt.executeUpdate();
+        conn.commit();
+        stmt.close();
+        conn.setAutoCommit(true);
+        conn.close();
+        capture.close();
+
+        JdbcDataSource target = getDataSource("transactiontarget");
+        createTable(target);
+        WorkloadReplay.Result result = WorkloadReplay.read(file).replay(
+                target, 1, /*speedUp=*/ 0);
+        Assert.assertEquals(result.toString(), 0, result.getErrors());
+        Assert.assertEquals(result.toString(), 2, result.getExecutions());
+        Assert.assertEquals(result.toString(), 4, result.getTransactions());
+        Assert.assertEquals(result.toString(), 2,
+                result.getLatencyNanos().getCount());
+
+        Connection targetConn = target.getConnection();
+        try {
+            Statement check = targetConn.createStatement();
+            ResultSet rs = check.executeQuery("SELECT id FROM " +
+                    "capture_table");
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals(2, rs.getInt(1));
+            Assert.assertFalse(rs.next());
+            rs.close();
+            check.close();
+        } finally {
+            targetConn.close();
+        }
+    }
+
+    @Test
+    public void testMissingSqlIsReplayError() throws Exception {
+        WorkloadCapture capture = new WorkloadCapture(file);
+        Configuration config = captureConfig(capture);
+        capture.connectionOpened(config, 1);
+        capture.statementExecuted(config, 1, "executeUpdate",
+                Collections.<String>singletonList(null),
+                Collections.singletonList(Collections.<Object>emptyList()),
+                0, null);
+        capture.statementExecuted(config, 1, "executeQuery",
+                Collections.singletonList("SELECT 1"),
+                Collections.singletonList(Collections.<Object>emptyList()),
+                0, null);
+        capture.connectionClosed(config, 1);
+        capture.close();
+
+        WorkloadReplay.Result result = WorkloadReplay.read(file).replay(
+                getDataSource("missingsql"), 1, /*speedUp=*/ 0);
+        Assert.assertEquals(result.toString(), 1, result.getErrors());
+        Assert.assertEquals(result.toString(), 1, result.getExecutions());
+    }
+
+    private static Configuration captureConfig(
+            final WorkloadCapture capture) {
+        return new Configuration(
+                EnumSet.noneOf(Configuration.Check.class),
+                Collections.<Configuration.Action>emptyList(),
+                Collections.<Configuration.Threshold, Long>emptyMap(),
+                Arrays.<Configuration.Listener>asList(capture));
+    }
+
+    private static JdbcDataSource getDataSource(final String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        return dataSource;
+    }
+
+    private static void createTable(final JdbcDataSource dataSource)
+            throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute(CREATE_TABLE);
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+    }
+}